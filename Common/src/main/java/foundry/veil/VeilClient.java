@@ -1,10 +1,15 @@
 package foundry.veil;
 
+import foundry.veil.math.Easings;
+import foundry.veil.postprocessing.InstanceTiles;
 import foundry.veil.shader.RenderTypeRegistry;
+import foundry.veil.shader.ShaderIncludeCache;
 import foundry.veil.test.PostProcessingEffectsRegistry;
 
 public class VeilClient {
     public static void init(){
+        ShaderIncludeCache.register(Veil.veilPath("shaders/include/easings.glsl"), Easings.getGlslSource());
+        ShaderIncludeCache.register(InstanceTiles.INCLUDE, InstanceTiles.getSource());
         PostProcessingEffectsRegistry.init();
     }
 }
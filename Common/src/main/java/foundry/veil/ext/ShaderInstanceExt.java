@@ -6,6 +6,8 @@ import org.jetbrains.annotations.Nullable;
 import org.lwjgl.system.NativeResource;
 
 import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 
 public interface ShaderInstanceExt extends NativeResource {
 
@@ -17,6 +19,31 @@ public interface ShaderInstanceExt extends NativeResource {
      */
     void recompile(ResourceProvider resourceProvider) throws IOException;
 
+    /**
+     * Recompiles all shaders and links them into a new program without waiting for the driver.
+     * The current program keeps being used until the new one has finished linking.
+     *
+     * @param resourceProvider The provider for new source files
+     * @return A future for when the new program is in use
+     */
+    CompletableFuture<Void> recompileAsync(ResourceProvider resourceProvider);
+
+    /**
+     * @return All stages of this shader by GL shader type
+     */
+    Map<Integer, Program> getStages();
+
     @Nullable
     Program getGeometryProgram();
+
+    @Nullable
+    Program getTessControlProgram();
+
+    @Nullable
+    Program getTessEvaluationProgram();
+
+    /**
+     * @return The number of vertices in each patch when this shader is tessellated
+     */
+    int getPatchVertices();
 }
@@ -2,101 +2,103 @@ package foundry.veil.math;
 
 import net.minecraft.util.Mth;
 
+import java.util.Locale;
+
 public class Easings {
     public static float ease(float x, Easing eType){
         return eType.ease(x);
     }
 
     public enum Easing implements IEasing {
-        linear {
+        linear("x") {
             public float ease(float x) { return x;}
         },
-        easeInQuad {
+        easeInQuad("x * x") {
             public float ease(float x) {
                 return x * x;
             }
         },
-        easeOutQuad {
+        easeOutQuad("1.0 - (1.0 - x) * (1.0 - x)") {
             public float ease(float x) {
                 return 1 - (1 - x) * (1 - x);
             }
         },
-        easeInOutQuad {
+        easeInOutQuad("x < 0.5 ? 2.0 * x * x : 1.0 - pow(-2.0 * x + 2.0, 2.0) / 2.0") {
             public float ease(float x) {
                 return x < 0.5 ? 2 * x * x : (float) (1 - Math.pow(-2 * x + 2, 2) / 2);
             }
         },
-        easeInCubic {
+        easeInCubic("x * x * x") {
             public float ease(float x) {
                 return x * x * x;
             }
         },
-        easeOutCubic {
+        easeOutCubic("1.0 - pow(1.0 - x, 3.0)") {
             public float ease(float x) {
                 return (float) (1 - Math.pow(1 - x, 3));
             }
         },
-        easeInOutCubic {
+        easeInOutCubic("x < 0.5 ? 4.0 * x * x * x : 1.0 - pow(-2.0 * x + 2.0, 3.0) / 2.0") {
             public float ease(float x) {
                 return x < 0.5 ? 4 * x * x * x : (float) (1 - Math.pow(-2 * x + 2, 3) / 2);
             }
         },
-        easeInQuart {
+        easeInQuart("x * x * x * x") {
             public float ease(float x) {
                 return x * x * x * x;
             }
         },
-        easeOutQuart {
+        easeOutQuart("1.0 - pow(1.0 - x, 4.0)") {
             public float ease(float x) {
                 return (float) (1 - Math.pow(1 - x, 4));
             }
         },
-        easeInOutQuart {
+        easeInOutQuart("x < 0.5 ? 8.0 * x * x * x * x : 1.0 - pow(-2.0 * x + 2.0, 4.0) / 2.0") {
             public float ease(float x) {
                 return x < 0.5 ? 8 * x * x * x * x : (float) (1 - Math.pow(-2 * x + 2, 4) / 2);
             }
         },
-        easeInQuint {
+        easeInQuint("x * x * x * x * x") {
             public float ease(float x) {
                 return x * x * x * x * x;
             }
         },
-        easeOutQuint {
+        easeOutQuint("1.0 - pow(1.0 - x, 5.0)") {
             public float ease(float x) {
                 return (float) (1 - Math.pow(1 - x, 5));
             }
         },
-        easeInOutQuint {
+        easeInOutQuint("x < 0.5 ? 16.0 * x * x * x * x * x : 1.0 - pow(-2.0 * x + 2.0, 5.0) / 2.0") {
             public float ease(float x) {
                 return x < 0.5 ? 16 * x * x * x * x * x : (float) (1 - Math.pow(-2 * x + 2, 5) / 2);
             }
         },
-        easeInSine {
+        easeInSine("1.0 - cos((x * PI) / 2.0)") {
             public float ease(float x) {
                 return 1 - Mth.cos((float) ((x * Math.PI) / 2));
             }
         },
-        easeOutSine {
+        easeOutSine("sin((x * PI) / 2.0)") {
             public float ease(float x) {
                 return Mth.sin((float) ((x * Math.PI) / 2));
             }
         },
-        easeInOutSine {
+        easeInOutSine("-(cos(PI * x) - 1.0) / 2.0") {
             public float ease(float x) {
                 return -(Mth.cos((float) (Math.PI * x)) - 1) / 2;
             }
         },
-        easeInExpo {
+        easeInExpo("x == 0.0 ? 0.0 : pow(2.0, 10.0 * x - 10.0)") {
             public float ease(float x) {
                 return x == 0 ? 0 : (float) Math.pow(2, 10 * x - 10);
             }
         },
-        easeOutExpo {
+        easeOutExpo("x == 1.0 ? 1.0 : 1.0 - pow(2.0, -10.0 * x)") {
             public float ease(float x) {
                 return x == 1 ? 1 : (float) (1 - Math.pow(2, -10 * x));
             }
         },
-        easeInOutExpo {
+        easeInOutExpo("x == 0.0 ? 0.0 : x == 1.0 ? 1.0 : x < 0.5 ? pow(2.0, 20.0 * x - 10.0) / 2.0 : (2.0 - pow(2.0, -20.0 * x + 10.0)) / 2.0") {
             public float ease(float x) {
                 return x == 0
                         ? 0
@@ -107,39 +109,39 @@ public class Easings {
                         : (2 - Math.pow(2, -20 * x + 10)) / 2);
             }
         },
-        easeInCirc {
+        easeInCirc("1.0 - sqrt(1.0 - x * x)") {
             public float ease(float x) {
                 return (float) (1 - Math.sqrt(1 - Math.pow(x, 2)));
             }
         },
-        easeOutCirc {
+        easeOutCirc("sqrt(1.0 - (x - 1.0) * (x - 1.0))") {
             public float ease(float x) {
                 return (float) Math.sqrt(1 - Math.pow(x - 1, 2));
             }
         },
-        easeInOutCirc {
+        easeInOutCirc("x < 0.5 ? (1.0 - sqrt(1.0 - 4.0 * x * x)) / 2.0 : (sqrt(1.0 - (-2.0 * x + 2.0) * (-2.0 * x + 2.0)) + 1.0) / 2.0") {
             public float ease(float x) {
                 return (float) (x < 0.5 ? (1 - Math.sqrt(1 - Math.pow(2 * x, 2))) / 2 : (Math.sqrt(1 - Math.pow(-2 * x + 2, 2)) + 1) / 2);
             }
         },
-        easeInBack {
+        easeInBack("2.70158 * x * x * x - 1.70158 * x * x") {
             public float ease(float x) {
                 return 2.70158F * x * x * x - 1.70158F * x * x;
             }
         },
-        easeOutBack {
+        easeOutBack("1.0 + 2.70158 * (x - 1.0) * (x - 1.0) * (x - 1.0) + 1.70158 * (x - 1.0) * (x - 1.0)") {
             public float ease(float x) {
                 return (float) (1 + 2.70158F * Math.pow(x - 1, 3) + 1.70158F * Math.pow(x - 1, 2));
             }
         },
-        easeInOutBack {
+        easeInOutBack("x < 0.5 ? (4.0 * x * x * ((2.5949095 + 1.0) * 2.0 * x - 2.5949095)) / 2.0 : ((2.0 * x - 2.0) * (2.0 * x - 2.0) * ((2.5949095 + 1.0) * (x * 2.0 - 2.0) + 2.5949095) + 2.0) / 2.0") {
             public float ease(float x) {
                 return (float) (x < 0.5
                         ? (Math.pow(2 * x, 2) * ((2.5949095F + 1) * 2 * x - 2.5949095F)) / 2
                         : (Math.pow(2 * x - 2, 2) * ((2.5949095F + 1) * (x * 2 - 2) + 2.5949095F) + 2) / 2);
             }
         },
-        easeInElastic {
+        easeInElastic("x == 0.0 ? 0.0 : x == 1.0 ? 1.0 : -pow(2.0, 10.0 * x - 10.0) * sin((x * 10.0 - 10.75) * ((2.0 * PI) / 3.0))") {
             public float ease(float x) {
                 return x == 0
                         ? 0
@@ -148,7 +150,7 @@ public class Easings {
                         : -Math.pow(2, 10 * x - 10) * Mth.sin((float) ((x * 10 - 10.75) * ((2 * Math.PI) / 3))));
             }
         },
-        easeOutElastic {
+        easeOutElastic("x == 0.0 ? 0.0 : x == 1.0 ? 1.0 : pow(2.0, -10.0 * x) * sin((x * 10.0 - 0.75) * ((2.0 * PI) / 3.0)) + 1.0") {
             public float ease(float x) {
                 return x == 0
                         ? 0
@@ -157,7 +159,7 @@ public class Easings {
                         : Math.pow(2, -10 * x) * Mth.sin((float) ((x * 10 - 0.75) * ((2 * Math.PI) / 3))) + 1);
             }
         },
-        easeInOutElastic {
+        easeInOutElastic("x == 0.0 ? 0.0 : x == 1.0 ? 1.0 : x < 0.5 ? -(pow(2.0, 20.0 * x - 10.0) * sin((20.0 * x - 11.125) * ((2.0 * PI) / 4.5))) / 2.0 : (pow(2.0, -20.0 * x + 10.0) * sin((20.0 * x - 11.125) * ((2.0 * PI) / 4.5))) / 2.0 + 1.0") {
             public float ease(float x) {
                 return x == 0
                         ? 0
@@ -168,17 +170,17 @@ public class Easings {
                         : (Math.pow(2, -20 * x + 10) * Mth.sin((float) ((20 * x - 11.125) * ((2 * Math.PI) / 4.5)))) / 2 + 1);
             }
         },
-        easeInBounce {
+        easeInBounce("1.0 - bounceOut(1.0 - x)") {
             public float ease(float x) {
                 return 1 - bounceOut(1 - x);
             }
         },
-        easeOutBounce {
+        easeOutBounce("1.0 - bounceOut(1.0 - x)") {
             public float ease(float x) {
                 return 1 - bounceOut(1 - x);
             }
         },
-        easeInOutBounce {
+        easeInOutBounce("x < 0.5 ? (1.0 - bounceOut(1.0 - 2.0 * x)) / 2.0 : (1.0 + bounceOut(2.0 * x - 1.0)) / 2.0") {
             public float ease(float x) {
                 return x < 0.5
                         ? (1 - bounceOut(1 - 2 * x)) / 2
@@ -186,6 +188,26 @@ public class Easings {
             }
         };
 
+        private final String glsl;
+
+        Easing(String glsl) {
+            this.glsl = glsl;
+        }
+
+        /**
+         * @return this easing as a GLSL expression of <code>x</code>, see {@link Easings#getGlslSource()}
+         */
+        public String getGlsl() {
+            return glsl;
+        }
+
+        /**
+         * @return the name of the GLSL constant for this easing, for example <code>VEIL_EASE_OUT_CIRC</code>
+         */
+        public String getGlslName() {
+            return "VEIL_" + name().replaceAll("([a-z])([A-Z])", "$1_$2").toUpperCase(Locale.ROOT);
+        }
+
         private static float bounceOut(float x) {
             float n1 = 7.5625F;
             float d1 = 2.75F;
@@ -202,6 +224,55 @@ public class Easings {
         }
     }
 
+    /**
+     * Generate GLSL that mirrors {@link Easing}. It declares a <code>const int</code> for every easing named after
+     * {@link Easing#getGlslName()}, with the ordinal as the value, and <code>float veil_ease(float x, int easing)</code>.
+     * Registered as the include <code>veil:easings</code>
+     */
+    public static String getGlslSource() {
+        StringBuilder source = new StringBuilder();
+        source.append("// Generated from foundry.veil.math.Easings\n");
+        source.append("#ifndef VEIL_EASINGS\n");
+        source.append("#define VEIL_EASINGS\n\n");
+        for (Easing easing : Easing.values())
+            source.append("const int ").append(easing.getGlslName()).append(" = ").append(easing.ordinal()).append(";\n");
+
+        source.append("""
+
+                float veil_bounceOut(float x) {
+                    float n1 = 7.5625;
+                    float d1 = 2.75;
+                    if (x < 1.0 / d1) {
+                        return n1 * x * x;
+                    } else if (x < 2.0 / d1) {
+                        x -= 1.5 / d1;
+                        return n1 * x * x + 0.75;
+                    } else if (x < 2.5 / d1) {
+                        x -= 2.25 / d1;
+                        return n1 * x * x + 0.9375;
+                    }
+                    x -= 2.625 / d1;
+                    return n1 * x * x + 0.984375;
+                }
+
+                float veil_ease(float x, int easing) {
+                    const float PI = 3.14159265358979;
+                    switch (easing) {
+                """);
+        for (Easing easing : Easing.values()) {
+            source.append("        case ").append(easing.ordinal()).append(": return ")
+                    .append(easing.getGlsl().replace("bounceOut(", "veil_bounceOut(")).append(";\n");
+        }
+        source.append("""
+                        default: return x;
+                    }
+                }
+
+                #endif
+                """);
+        return source.toString();
+    }
+
     public interface IEasing {
         float ease(float x);
     }
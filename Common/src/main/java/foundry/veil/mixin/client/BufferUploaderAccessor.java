@@ -0,0 +1,19 @@
+package foundry.veil.mixin.client;
+
+import com.mojang.blaze3d.vertex.BufferBuilder;
+import com.mojang.blaze3d.vertex.BufferUploader;
+import com.mojang.blaze3d.vertex.VertexBuffer;
+import org.spongepowered.asm.mixin.Mixin;
+import org.spongepowered.asm.mixin.gen.Invoker;
+
+import javax.annotation.Nullable;
+
+@Mixin(BufferUploader.class)
+public interface BufferUploaderAccessor {
+
+    @Invoker
+    @Nullable
+    static VertexBuffer invokeUpload(BufferBuilder.RenderedBuffer buffer) {
+        throw new AssertionError();
+    }
+}
@@ -0,0 +1,41 @@
+package foundry.veil.mixin.client;
+
+import com.google.gson.JsonObject;
+import com.llamalad7.mixinextras.injector.ModifyExpressionValue;
+import com.mojang.blaze3d.shaders.EffectProgram;
+import com.mojang.blaze3d.shaders.Program;
+import foundry.veil.shader.VeilShaderLoader;
+import net.minecraft.client.renderer.EffectInstance;
+import net.minecraft.server.packs.resources.ResourceManager;
+import org.spongepowered.asm.mixin.Mixin;
+import org.spongepowered.asm.mixin.Shadow;
+import org.spongepowered.asm.mixin.Unique;
+import org.spongepowered.asm.mixin.injection.At;
+import org.spongepowered.asm.mixin.injection.Redirect;
+
+import java.io.IOException;
+import java.util.List;
+
+@Mixin(EffectInstance.class)
+public class EffectInstanceMixin {
+
+    @Unique
+    private List<String> defines;
+
+    @Shadow
+    private static EffectProgram getOrCreate(ResourceManager resourceManager, Program.Type type, String name) throws IOException {
+        throw new AssertionError();
+    }
+
+    @ModifyExpressionValue(method = "<init>", at = @At(value = "INVOKE", target = "Lnet/minecraft/util/GsonHelper;parse(Ljava/io/Reader;)Lcom/google/gson/JsonObject;"))
+    private JsonObject readDefines(JsonObject json) {
+        this.defines = VeilShaderLoader.getDefines(json);
+        return json;
+    }
+
+    // Each effect uploads its own uniforms, so only the stages are shared between effects with the same defines
+    @Redirect(method = "<init>", at = @At(value = "INVOKE", target = "Lnet/minecraft/client/renderer/EffectInstance;getOrCreate(Lnet/minecraft/server/packs/resources/ResourceManager;Lcom/mojang/blaze3d/shaders/Program$Type;Ljava/lang/String;)Lcom/mojang/blaze3d/shaders/EffectProgram;"))
+    private EffectProgram getOrCreateVariant(ResourceManager resourceManager, Program.Type type, String name) throws IOException {
+        return this.defines.isEmpty() ? getOrCreate(resourceManager, type, name) : VeilShaderLoader.getOrCreateEffectVariant(resourceManager, type, name, this.defines);
+    }
+}
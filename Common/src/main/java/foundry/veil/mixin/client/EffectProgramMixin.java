@@ -2,13 +2,29 @@ package foundry.veil.mixin.client;
 
 import com.mojang.blaze3d.preprocessor.GlslPreprocessor;
 import com.mojang.blaze3d.shaders.EffectProgram;
+import com.mojang.blaze3d.shaders.Program;
 import foundry.veil.postprocessing.PreProcessor;
+import foundry.veil.shader.VeilShaderLoader;
+import net.minecraft.resources.ResourceLocation;
 import org.spongepowered.asm.mixin.Mixin;
+import org.spongepowered.asm.mixin.Unique;
 import org.spongepowered.asm.mixin.injection.At;
+import org.spongepowered.asm.mixin.injection.Inject;
 import org.spongepowered.asm.mixin.injection.ModifyArg;
+import org.spongepowered.asm.mixin.injection.callback.CallbackInfoReturnable;
+
+import java.io.InputStream;
 
 @Mixin(EffectProgram.class)
 public class EffectProgramMixin {
+    @Unique
+    private static ResourceLocation captureProgram;
+
+    @Inject(method = "compileShader", at = @At("HEAD"))
+    private static void captureProgram(Program.Type type, String name, InputStream stream, String sourceName, CallbackInfoReturnable<EffectProgram> cir) {
+        captureProgram = VeilShaderLoader.getEffectLocation(type, name);
+    }
+
     @ModifyArg(
             method = "compileShader",
             at = @At(
@@ -18,6 +34,6 @@ public class EffectProgramMixin {
             index = 4
     )
     private static GlslPreprocessor useCustomPreprocessor(GlslPreprocessor preprocessor){
-        return new PreProcessor();
+        return new PreProcessor(captureProgram);
     }
-}
\ No newline at end of file
+}
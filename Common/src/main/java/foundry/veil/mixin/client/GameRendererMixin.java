@@ -1,20 +1,29 @@
 package foundry.veil.mixin.client;
 
 import foundry.veil.postprocessing.PostProcessingHandler;
+import foundry.veil.shader.ProgramBinaryCache;
+import foundry.veil.shader.ShaderHotReloader;
+import foundry.veil.shader.ShaderStatistics;
 import foundry.veil.shader.RenderTypeRegistry;
 import foundry.veil.shader.VeilShaderLoader;
 import net.minecraft.client.Minecraft;
 import net.minecraft.client.renderer.GameRenderer;
 import net.minecraft.client.renderer.ItemInHandRenderer;
 import net.minecraft.client.renderer.RenderBuffers;
+import net.minecraft.server.packs.resources.PreparableReloadListener;
 import net.minecraft.server.packs.resources.ResourceManager;
+import net.minecraft.server.packs.resources.ResourceManagerReloadListener;
+import net.minecraft.util.profiling.ProfilerFiller;
 import org.spongepowered.asm.mixin.Mixin;
 import org.spongepowered.asm.mixin.injection.At;
 import org.spongepowered.asm.mixin.injection.Inject;
 import org.spongepowered.asm.mixin.injection.callback.CallbackInfo;
 
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
 @Mixin(GameRenderer.class)
-public class GameRendererMixin {
+public abstract class GameRendererMixin implements ResourceManagerReloadListener {
 
     @Inject(method = "<init>", at = @At("TAIL"))
     public void initRenderer(Minecraft $$0, ItemInHandRenderer $$1, ResourceManager $$2, RenderBuffers $$3, CallbackInfo ci) {
@@ -29,5 +38,38 @@ public class GameRendererMixin {
     @Inject(method = "reloadShaders", at=@At("HEAD"))
     public void closeShaders(ResourceManager resourceManager, CallbackInfo ci){
         VeilShaderLoader.free();
+        ProgramBinaryCache.resetStatistics();
+    }
+
+    // Vanilla has just closed its old programs, so everything prepared can be compiled at once
+    @Inject(method = "reloadShaders", at = @At(value = "INVOKE", target = "Ljava/util/List;forEach(Ljava/util/function/Consumer;)V", ordinal = 0, shift = At.Shift.AFTER))
+    public void submitShaders(ResourceManager resourceManager, CallbackInfo ci) {
+        VeilShaderLoader.submitPrepared();
+    }
+
+    @Inject(method = "render", at = @At("HEAD"))
+    public void pollShaders(float partialTicks, long nanoTime, boolean renderLevel, CallbackInfo ci) {
+        VeilShaderLoader.poll();
+        ShaderHotReloader.poll();
+    }
+
+    @Inject(method = "reloadShaders", at = @At("TAIL"))
+    public void logShaderCache(ResourceManager resourceManager, CallbackInfo ci) {
+        VeilShaderLoader.clearPrepared();
+        ProgramBinaryCache.logStatistics();
+        ShaderStatistics.logReport();
+        ShaderHotReloader.watch(resourceManager);
+    }
+
+    // Replaces the default from ResourceManagerReloadListener so shader sources are read off-thread before the render thread compiles them
+    @Override
+    public CompletableFuture<Void> reload(PreparableReloadListener.PreparationBarrier barrier, ResourceManager resourceManager, ProfilerFiller preparationsProfiler, ProfilerFiller reloadProfiler, Executor backgroundExecutor, Executor gameExecutor) {
+        return VeilShaderLoader.prepare(resourceManager, backgroundExecutor).thenCompose(barrier::wait).thenRunAsync(() -> {
+            reloadProfiler.startTick();
+            reloadProfiler.push("listener");
+            this.onResourceManagerReload(resourceManager);
+            reloadProfiler.pop();
+            reloadProfiler.endTick();
+        }, gameExecutor);
     }
 }
\ No newline at end of file
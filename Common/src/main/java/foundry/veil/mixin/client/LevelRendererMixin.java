@@ -1,10 +1,17 @@
 package foundry.veil.mixin.client;
 
 import com.mojang.blaze3d.pipeline.RenderTarget;
+import com.mojang.blaze3d.systems.RenderSystem;
+import com.mojang.blaze3d.vertex.PoseStack;
+import com.mojang.math.Matrix4f;
 import foundry.veil.postprocessing.PostProcessingHandler;
 import foundry.veil.shader.RenderTargetRegistry;
+import foundry.veil.shader.VeilFrameUniforms;
+import net.minecraft.client.Camera;
 import net.minecraft.client.Minecraft;
+import net.minecraft.client.renderer.GameRenderer;
 import net.minecraft.client.renderer.LevelRenderer;
+import net.minecraft.client.renderer.LightTexture;
 import net.minecraft.client.renderer.PostChain;
 import net.minecraft.client.renderer.RenderBuffers;
 import net.minecraft.client.renderer.blockentity.BlockEntityRenderDispatcher;
@@ -21,6 +28,8 @@ import org.spongepowered.asm.mixin.injection.callback.LocalCapture;
 
 import javax.annotation.Nullable;
 
+import static org.lwjgl.opengl.GL11.GL_COLOR_BUFFER_BIT;
+
 @Mixin(LevelRenderer.class)
 public class LevelRendererMixin {
     @Shadow @Final private Minecraft minecraft;
@@ -28,6 +37,11 @@ public class LevelRendererMixin {
     @Nullable
     private RenderTarget veilCustomRenderTarget;
 
+    @Inject(method = "renderLevel", at = @At("HEAD"))
+    public void veil$updateFrameUniforms(PoseStack poseStack, float partialTick, long finishNanoTime, boolean renderBlockOutline, Camera camera, GameRenderer gameRenderer, LightTexture lightTexture, Matrix4f projectionMatrix, CallbackInfo ci) {
+        VeilFrameUniforms.update(poseStack.last().pose(), projectionMatrix, camera, partialTick);
+    }
+
     @Inject(method = "renderLevel", at = @At(value = "INVOKE", target = "net.minecraft.client.renderer.PostChain.process(F)V", ordinal = 1))
     public void injectionBeforeTransparencyChainProcess(CallbackInfo ci) {
         PostProcessingHandler.copyDepth();
@@ -51,12 +65,21 @@ public class LevelRendererMixin {
 
     @Inject(method = "renderLevel", at = @At(value = "INVOKE", target = "Lnet/minecraft/client/multiplayer/ClientLevel;entitiesForRendering()Ljava/lang/Iterable;"))
     public void veil$injectCustomRenderTargets(CallbackInfo ci) {
+        // These targets are rendered into with depth testing, so each needs the depth in its own framebuffer.
+        // The depth is overwritten by the copy anyway, so only the color is cleared
+        RenderTarget main = Minecraft.getInstance().getMainRenderTarget();
+        boolean copied = false;
         for (String id : RenderTargetRegistry.shouldCopyDepth) {
             RenderTarget target = RenderTargetRegistry.renderTargets.get(id);
-            if (target == null) return;
-            target.clear(Minecraft.ON_OSX);
-            target.copyDepthFrom(Minecraft.getInstance().getMainRenderTarget());
-            Minecraft.getInstance().getMainRenderTarget().bindWrite(false);
+            if (target == null) continue;
+            target.bindWrite(false);
+            RenderSystem.clearColor(target.clearChannels[0], target.clearChannels[1], target.clearChannels[2], target.clearChannels[3]);
+            RenderSystem.clear(GL_COLOR_BUFFER_BIT, Minecraft.ON_OSX);
+            target.copyDepthFrom(main);
+            copied = true;
+        }
+        if (copied) {
+            main.bindWrite(false);
         }
     }
 
@@ -0,0 +1,15 @@
+package foundry.veil.mixin.client;
+
+import com.mojang.blaze3d.pipeline.RenderTarget;
+import net.minecraft.client.renderer.PostChain;
+import org.spongepowered.asm.mixin.Mixin;
+import org.spongepowered.asm.mixin.gen.Accessor;
+
+import java.util.List;
+
+@Mixin(PostChain.class)
+public interface PostChainAccessor {
+
+    @Accessor
+    List<RenderTarget> getFullSizedTargets();
+}
@@ -0,0 +1,60 @@
+package foundry.veil.mixin.client;
+
+import com.mojang.blaze3d.pipeline.RenderTarget;
+import com.mojang.blaze3d.pipeline.TextureTarget;
+import foundry.veil.postprocessing.PostProcessingHandler;
+import foundry.veil.postprocessing.RenderTargetPool;
+import net.minecraft.client.renderer.PostChain;
+import org.spongepowered.asm.mixin.Mixin;
+import org.spongepowered.asm.mixin.Shadow;
+import org.spongepowered.asm.mixin.Unique;
+import org.spongepowered.asm.mixin.injection.At;
+import org.spongepowered.asm.mixin.injection.Inject;
+import org.spongepowered.asm.mixin.injection.Redirect;
+import org.spongepowered.asm.mixin.injection.callback.CallbackInfo;
+
+@Mixin(PostChain.class)
+public class PostChainMixin {
+
+    @Shadow
+    private int screenWidth;
+    @Shadow
+    private int screenHeight;
+
+    @Unique
+    private static String captureTargetName;
+
+    @Inject(method = "addTempTarget", at = @At("HEAD"))
+    public void captureTargetName(String name, int width, int height, CallbackInfo ci) {
+        captureTargetName = name;
+    }
+
+    @Redirect(method = "addTempTarget", at = @At(value = "NEW", target = "com/mojang/blaze3d/pipeline/TextureTarget"))
+    public TextureTarget acquireTarget(int width, int height, boolean useDepth, boolean clearError) {
+        // Every Veil chain reads the same depth snapshot instead of copying the depth buffer itself
+        if (RenderTargetPool.isLoading() && PostProcessingHandler.DEPTH_TARGET.equals(captureTargetName)) {
+            return (TextureTarget) RenderTargetPool.share(this, PostProcessingHandler.getDepthSnapshot());
+        }
+        if (RenderTargetPool.isTransient(captureTargetName)) {
+            return (TextureTarget) RenderTargetPool.acquire(this, width, height, useDepth, width == this.screenWidth && height == this.screenHeight);
+        }
+        return new TextureTarget(width, height, useDepth, clearError);
+    }
+
+    // Shared targets are resized by every chain using them, so only the first one needs to do anything
+    @Redirect(method = "resize", at = @At(value = "INVOKE", target = "Lcom/mojang/blaze3d/pipeline/RenderTarget;resize(IIZ)V"))
+    public void resizeTarget(RenderTarget target, int width, int height, boolean clearError) {
+        if (RenderTargetPool.isPooled(target)) {
+            RenderTargetPool.resize(target, width, height);
+        } else {
+            target.resize(width, height, clearError);
+        }
+    }
+
+    @Redirect(method = "close", at = @At(value = "INVOKE", target = "Lcom/mojang/blaze3d/pipeline/RenderTarget;destroyBuffers()V"))
+    public void releaseTarget(RenderTarget target) {
+        if (!RenderTargetPool.release(this, target)) {
+            target.destroyBuffers();
+        }
+    }
+}
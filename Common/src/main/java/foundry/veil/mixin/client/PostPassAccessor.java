@@ -0,0 +1,15 @@
+package foundry.veil.mixin.client;
+
+import com.mojang.blaze3d.pipeline.RenderTarget;
+import net.minecraft.client.renderer.PostPass;
+import org.spongepowered.asm.mixin.Mixin;
+import org.spongepowered.asm.mixin.Mutable;
+import org.spongepowered.asm.mixin.gen.Accessor;
+
+@Mixin(PostPass.class)
+public interface PostPassAccessor {
+
+    @Mutable
+    @Accessor
+    void setOutTarget(RenderTarget outTarget);
+}
@@ -0,0 +1,46 @@
+package foundry.veil.mixin.client;
+
+import com.mojang.blaze3d.pipeline.RenderTarget;
+import com.mojang.blaze3d.systems.RenderSystem;
+import com.mojang.blaze3d.vertex.BufferBuilder;
+import com.mojang.blaze3d.vertex.BufferUploader;
+import com.mojang.blaze3d.vertex.VertexBuffer;
+import foundry.veil.postprocessing.ScreenRects;
+import net.minecraft.client.renderer.PostPass;
+import org.spongepowered.asm.mixin.Final;
+import org.spongepowered.asm.mixin.Mixin;
+import org.spongepowered.asm.mixin.Mutable;
+import org.spongepowered.asm.mixin.Shadow;
+import org.spongepowered.asm.mixin.Unique;
+import org.spongepowered.asm.mixin.injection.At;
+import org.spongepowered.asm.mixin.injection.Redirect;
+
+@Mixin(PostPass.class)
+public class PostPassMixin {
+    // Mutable because PostProcessor points passes at a different target at full scale, see PostPassAccessor
+    @Mutable @Shadow @Final public RenderTarget outTarget;
+
+    @Unique
+    private static final int[] veil$rect = new int[4];
+
+    // Draws the quad once per rectangle of the processor instead of over the whole target
+    @Redirect(method = "process", at = @At(value = "INVOKE", target = "Lcom/mojang/blaze3d/vertex/BufferUploader;draw(Lcom/mojang/blaze3d/vertex/BufferBuilder$RenderedBuffer;)V"))
+    public void veil$drawScreenRects(BufferBuilder.RenderedBuffer buffer) {
+        ScreenRects rects = ScreenRects.getActive();
+        if (rects == null) {
+            BufferUploader.draw(buffer);
+            return;
+        }
+
+        VertexBuffer vertexBuffer = BufferUploaderAccessor.invokeUpload(buffer);
+        if (vertexBuffer == null) {
+            return;
+        }
+        for (int i = 0; i < rects.size(); i++) {
+            rects.get(i, outTarget.width, outTarget.height, veil$rect);
+            RenderSystem.enableScissor(veil$rect[0], veil$rect[1], veil$rect[2], veil$rect[3]);
+            vertexBuffer.draw();
+        }
+        RenderSystem.disableScissor();
+    }
+}
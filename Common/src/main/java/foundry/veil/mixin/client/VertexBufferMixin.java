@@ -0,0 +1,35 @@
+package foundry.veil.mixin.client;
+
+import com.mojang.blaze3d.systems.RenderSystem;
+import com.mojang.blaze3d.vertex.VertexBuffer;
+import foundry.veil.ext.ShaderInstanceExt;
+import net.minecraft.client.renderer.ShaderInstance;
+import org.spongepowered.asm.mixin.Mixin;
+import org.spongepowered.asm.mixin.Unique;
+import org.spongepowered.asm.mixin.injection.At;
+import org.spongepowered.asm.mixin.injection.ModifyArg;
+
+import static org.lwjgl.opengl.GL40C.*;
+
+@Mixin(VertexBuffer.class)
+public class VertexBufferMixin {
+
+    @Unique
+    private static int lastPatchVertices = -1;
+
+    // Shaders with a tessellation evaluation stage can only draw patches
+    @ModifyArg(method = "draw", at = @At(value = "INVOKE", target = "Lcom/mojang/blaze3d/systems/RenderSystem;drawElements(III)V"), index = 0)
+    public int drawPatches(int mode) {
+        ShaderInstance shader = RenderSystem.getShader();
+        if (mode != GL_TRIANGLES || !(shader instanceof ShaderInstanceExt ext) || ext.getTessEvaluationProgram() == null) {
+            return mode;
+        }
+
+        int patchVertices = ext.getPatchVertices();
+        if (lastPatchVertices != patchVertices) {
+            glPatchParameteri(GL_PATCH_VERTICES, patchVertices);
+            lastPatchVertices = patchVertices;
+        }
+        return GL_PATCHES;
+    }
+}
@@ -0,0 +1,18 @@
+package foundry.veil.mixin.client.shader;
+
+import com.mojang.blaze3d.platform.GlStateManager;
+import foundry.veil.shader.BoundProgram;
+import org.spongepowered.asm.mixin.Mixin;
+import org.spongepowered.asm.mixin.injection.At;
+import org.spongepowered.asm.mixin.injection.Inject;
+import org.spongepowered.asm.mixin.injection.callback.CallbackInfo;
+
+@Mixin(GlStateManager.class)
+public class GlStateManagerMixin {
+
+    // Every program binding in vanilla goes through here, so querying GL_CURRENT_PROGRAM is never needed
+    @Inject(method = "_glUseProgram", at = @At("HEAD"))
+    private static void trackProgram(int program, CallbackInfo ci) {
+        BoundProgram.set(program);
+    }
+}
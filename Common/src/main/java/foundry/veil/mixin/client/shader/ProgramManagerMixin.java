@@ -2,19 +2,79 @@ package foundry.veil.mixin.client.shader;
 
 import com.mojang.blaze3d.shaders.ProgramManager;
 import com.mojang.blaze3d.shaders.Shader;
+import foundry.veil.ext.ShaderInstanceExt;
+import foundry.veil.shader.ProgramBinaryCache;
+import foundry.veil.shader.ShaderStatistics;
+import foundry.veil.shader.VeilFrameUniforms;
+import foundry.veil.shader.VeilShaderLoader;
 import org.lwjgl.system.NativeResource;
 import org.spongepowered.asm.mixin.Mixin;
+import org.spongepowered.asm.mixin.Unique;
 import org.spongepowered.asm.mixin.injection.At;
 import org.spongepowered.asm.mixin.injection.Inject;
 import org.spongepowered.asm.mixin.injection.callback.CallbackInfo;
 
+import java.util.ArrayList;
+import java.util.List;
+
 @Mixin(ProgramManager.class)
 public class ProgramManagerMixin {
 
+    @Unique
+    private static String captureBinaryKey;
+    @Unique
+    private static ShaderStatistics.Timer captureLinkTimer;
+
+    @Inject(method = "linkShader", at = @At("HEAD"))
+    private static void startLinkTimer(Shader shader, CallbackInfo ci) {
+        String name = ProgramBinaryCache.getName(shader);
+        captureLinkTimer = ShaderStatistics.start(name, ShaderStatistics.Phase.LINK);
+        if (shader instanceof ShaderInstanceExt ext) {
+            List<String> files = new ArrayList<>();
+            ext.getStages().forEach((type, program) -> files.addAll(VeilShaderLoader.getStatisticsNames(type, program.getName())));
+            ShaderStatistics.addFiles(name, files);
+        }
+    }
+
     @Inject(method = "releaseProgram", at = @At(value = "INVOKE", target = "Lcom/mojang/blaze3d/platform/GlStateManager;glDeleteProgram(I)V", shift = At.Shift.BEFORE))
     private static void free(Shader shader, CallbackInfo ci) {
         if (shader instanceof NativeResource resource) {
             resource.free();
         }
     }
+
+    // All stages are attached at this point, so the key can be computed from the real sources
+    @Inject(method = "linkShader", at = @At(value = "INVOKE", target = "Lcom/mojang/blaze3d/shaders/Shader;attachToProgram()V", shift = At.Shift.AFTER), cancellable = true)
+    private static void loadBinary(Shader shader, CallbackInfo ci) {
+        captureBinaryKey = null;
+        if (!ProgramBinaryCache.isSupported()) {
+            return;
+        }
+
+        String key = ProgramBinaryCache.getKey(shader);
+        if (ProgramBinaryCache.load(shader, key)) {
+            // Block bindings are not part of the binary
+            VeilFrameUniforms.bind(shader.getId());
+            captureLinkTimer.end();
+            captureLinkTimer = null;
+            ci.cancel();
+            return;
+        }
+
+        ProgramBinaryCache.prepareLink(shader);
+        captureBinaryKey = key;
+    }
+
+    @Inject(method = "linkShader", at = @At("TAIL"))
+    private static void storeBinary(Shader shader, CallbackInfo ci) {
+        VeilFrameUniforms.bind(shader.getId());
+        if (captureLinkTimer != null) {
+            captureLinkTimer.end();
+            captureLinkTimer = null;
+        }
+        if (captureBinaryKey != null) {
+            ProgramBinaryCache.store(shader, captureBinaryKey);
+            captureBinaryKey = null;
+        }
+    }
 }
@@ -0,0 +1,33 @@
+package foundry.veil.mixin.client.shader;
+
+import com.mojang.blaze3d.platform.TextureUtil;
+import com.mojang.blaze3d.preprocessor.GlslPreprocessor;
+import com.mojang.blaze3d.shaders.Program;
+import foundry.veil.shader.VeilShaderLoader;
+import org.spongepowered.asm.mixin.Mixin;
+import org.spongepowered.asm.mixin.injection.At;
+import org.spongepowered.asm.mixin.injection.Inject;
+import org.spongepowered.asm.mixin.injection.Redirect;
+import org.spongepowered.asm.mixin.injection.callback.CallbackInfoReturnable;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+@Mixin(Program.class)
+public class ProgramMixin {
+
+    // Core and post programs with identical source share one shader object, like the stages Veil compiles itself
+    @Inject(method = "compileShaderInternal", at = @At("HEAD"), cancellable = true)
+    private static void compileShared(Program.Type type, String name, InputStream stream, String sourceName, GlslPreprocessor preprocessor, CallbackInfoReturnable<Integer> cir) throws IOException {
+        String source = TextureUtil.readResourceAsString(stream);
+        if (source == null) {
+            throw new IOException("Could not load program " + type.getName());
+        }
+        cir.setReturnValue(VeilShaderLoader.compileShared(type.getGlType(), preprocessor.process(source), name, sourceName));
+    }
+
+    @Redirect(method = "close", at = @At(value = "INVOKE", target = "Lcom/mojang/blaze3d/platform/GlStateManager;glDeleteShader(I)V"))
+    private void releaseShared(int shaderId) {
+        VeilShaderLoader.releaseShared(shaderId);
+    }
+}
@@ -1,41 +1,69 @@
 package foundry.veil.mixin.client.shader;
 
 import com.google.gson.JsonObject;
+import com.llamalad7.mixinextras.injector.ModifyExpressionValue;
+import com.mojang.blaze3d.platform.GlStateManager;
 import com.mojang.blaze3d.shaders.Program;
 import com.mojang.blaze3d.shaders.ProgramManager;
+import com.mojang.blaze3d.shaders.Uniform;
 import com.mojang.blaze3d.vertex.VertexFormat;
 import foundry.veil.ext.ShaderInstanceExt;
+import foundry.veil.shader.ShaderStatistics;
+import foundry.veil.shader.VeilFrameUniforms;
 import foundry.veil.shader.VeilShaderLoader;
 import net.minecraft.client.renderer.ShaderInstance;
 import net.minecraft.resources.ResourceLocation;
 import net.minecraft.server.packs.resources.ResourceProvider;
 import net.minecraft.util.GsonHelper;
+import org.apache.commons.lang3.StringUtils;
 import org.jetbrains.annotations.Nullable;
 import org.spongepowered.asm.mixin.*;
 import org.spongepowered.asm.mixin.injection.At;
 import org.spongepowered.asm.mixin.injection.Inject;
 import org.spongepowered.asm.mixin.injection.ModifyVariable;
+import org.spongepowered.asm.mixin.injection.Redirect;
 import org.spongepowered.asm.mixin.injection.callback.CallbackInfo;
-import org.spongepowered.asm.mixin.injection.callback.CallbackInfoReturnable;
 import org.spongepowered.asm.mixin.injection.callback.LocalCapture;
 
 import java.io.IOException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 
-import static org.lwjgl.opengl.GL20C.GL_VERTEX_SHADER;
+import static org.lwjgl.opengl.GL20C.*;
 import static org.lwjgl.opengl.GL32C.GL_GEOMETRY_SHADER;
+import static org.lwjgl.opengl.GL40C.GL_TESS_CONTROL_SHADER;
+import static org.lwjgl.opengl.GL40C.GL_TESS_EVALUATION_SHADER;
 
 @Mixin(ShaderInstance.class)
 public abstract class ShaderInstanceMixin implements ShaderInstanceExt {
 
     @Unique
     private Program geometryProgram;
+    @Unique
+    private Program tessControlProgram;
+    @Unique
+    private Program tessEvaluationProgram;
+    @Unique
+    private int patchVertices;
+    @Unique
+    private List<String> defines;
 
     @Mutable
     @Shadow
     @Final
     private String name;
 
+    @Mutable
+    @Shadow
+    @Final
+    private int programId;
+
+    @Shadow
+    private static int lastProgramId;
+
     @Shadow
     protected abstract void updateLocations();
 
@@ -51,11 +79,13 @@ public abstract class ShaderInstanceMixin implements ShaderInstanceExt {
     @Shadow
     @Final
     private List<Integer> uniformLocations;
-    @Unique
-    private static String captureLocation;
-    @Unique
-    private static Program.Type captureType;
-
+    @Shadow
+    @Final
+    @Nullable
+    private List<String> attributeNames;
+    @Shadow
+    @Final
+    private VertexFormat vertexFormat;
     @ModifyVariable(method = "<init>", index = 2, at = @At(value = "FIELD", target = "Lnet/minecraft/client/renderer/ShaderInstance;vertexFormat:Lcom/mojang/blaze3d/vertex/VertexFormat;"), argsOnly = true)
     public String clearLocationString(String value) {
         return "";
@@ -72,28 +102,25 @@ public abstract class ShaderInstanceMixin implements ShaderInstanceExt {
         return new ResourceLocation(id.getNamespace(), "shaders/core/" + id.getPath() + ".json");
     }
 
-    @Inject(method = "getOrCreate", at = @At("HEAD"))
-    private static void captureGetOrCreate(ResourceProvider resourceProvider, Program.Type type, String string, CallbackInfoReturnable<Program> cir) {
-        captureLocation = string;
-        captureType = type;
-    }
-
-    @Inject(method = "getOrCreate", at = @At("TAIL"))
-    private static void deleteGetOrCreate(ResourceProvider resourceProvider, Program.Type type, String string, CallbackInfoReturnable<Program> cir) {
-        captureLocation = null;
-        captureType = null;
+    @ModifyExpressionValue(method = "<init>", at = @At(value = "INVOKE", target = "Lnet/minecraft/util/GsonHelper;parse(Ljava/io/Reader;)Lcom/google/gson/JsonObject;"))
+    private JsonObject readDefines(JsonObject json) {
+        this.defines = VeilShaderLoader.getDefines(json);
+        return json;
     }
 
-    @ModifyVariable(method = "getOrCreate", at = @At(value = "NEW", target = "net/minecraft/resources/ResourceLocation", ordinal = 0, shift = At.Shift.BEFORE), ordinal = 1)
-    private static String modifyStaticLocation(String value) {
-        ResourceLocation id = new ResourceLocation(captureLocation);
-        return id.getNamespace() + ":shaders/core/" + id.getPath() + captureType.getExtension();
+    @Redirect(method = "<init>", at = @At(value = "INVOKE", target = "Lnet/minecraft/client/renderer/ShaderInstance;getOrCreate(Lnet/minecraft/server/packs/resources/ResourceProvider;Lcom/mojang/blaze3d/shaders/Program$Type;Ljava/lang/String;)Lcom/mojang/blaze3d/shaders/Program;"))
+    private Program getOrCreate(ResourceProvider provider, Program.Type type, String name) throws IOException {
+        return VeilShaderLoader.getOrCreateVariant(provider, type == Program.Type.VERTEX ? GL_VERTEX_SHADER : GL_FRAGMENT_SHADER, name, this.defines);
     }
 
     // I would ideally want to do this, but I don't know if this is legal
     @Inject(method = "<init>", at = @At(value = "INVOKE", target = "Lcom/mojang/blaze3d/shaders/ProgramManager;createProgram()I"), locals = LocalCapture.CAPTURE_FAILHARD)
     public void createExtraPrograms(ResourceProvider provider, String $$1, VertexFormat $$2, CallbackInfo ci, ResourceLocation location, JsonObject json) throws IOException {
-        this.geometryProgram = json.has("geometry") ? VeilShaderLoader.getOrCreate(provider, GL_GEOMETRY_SHADER, GsonHelper.getAsString(json, "geometry")) : null;
+        this.geometryProgram = json.has("geometry") ? VeilShaderLoader.getOrCreateVariant(provider, GL_GEOMETRY_SHADER, GsonHelper.getAsString(json, "geometry"), this.defines) : null;
+        this.tessControlProgram = json.has("tess_control") ? VeilShaderLoader.getOrCreateVariant(provider, GL_TESS_CONTROL_SHADER, GsonHelper.getAsString(json, "tess_control"), this.defines) : null;
+        this.tessEvaluationProgram = json.has("tess_evaluation") ? VeilShaderLoader.getOrCreateVariant(provider, GL_TESS_EVALUATION_SHADER, GsonHelper.getAsString(json, "tess_evaluation"), this.defines) : null;
+        // Vanilla draws quads as indexed triangles, so triangle patches work with every existing render type
+        this.patchVertices = GsonHelper.getAsInt(json, "patch_vertices", 3);
     }
 
     // This is here in case the above mixin is actually invalid. It works but is worse.
@@ -125,34 +152,154 @@ public abstract class ShaderInstanceMixin implements ShaderInstanceExt {
 
     @Inject(method = "attachToProgram", at = @At("TAIL"))
     public void attachToProgram(CallbackInfo ci) {
+        if (this.tessControlProgram != null) {
+            this.tessControlProgram.attachToShader((ShaderInstance) (Object) this);
+        }
+        if (this.tessEvaluationProgram != null) {
+            this.tessEvaluationProgram.attachToShader((ShaderInstance) (Object) this);
+        }
         if (this.geometryProgram != null) {
             this.geometryProgram.attachToShader((ShaderInstance) (Object) this);
         }
     }
 
     @Override
-    public void recompile(ResourceProvider resourceProvider) throws IOException {
-        VeilShaderLoader.compile(resourceProvider, ((ProgramAccessor) this.vertexProgram).getId(), GL_VERTEX_SHADER, this.vertexProgram.getName());
-        VeilShaderLoader.compile(resourceProvider, ((ProgramAccessor) this.fragmentProgram).getId(), GL_VERTEX_SHADER, this.fragmentProgram.getName());
+    public Map<Integer, Program> getStages() {
+        Map<Integer, Program> stages = new LinkedHashMap<>();
+        stages.put(GL_VERTEX_SHADER, this.vertexProgram);
+        stages.put(GL_FRAGMENT_SHADER, this.fragmentProgram);
+        if (this.tessControlProgram != null) {
+            stages.put(GL_TESS_CONTROL_SHADER, this.tessControlProgram);
+        }
+        if (this.tessEvaluationProgram != null) {
+            stages.put(GL_TESS_EVALUATION_SHADER, this.tessEvaluationProgram);
+        }
         if (this.geometryProgram != null) {
-            VeilShaderLoader.compile(resourceProvider, ((ProgramAccessor) this.geometryProgram).getId(), GL_VERTEX_SHADER, this.geometryProgram.getName());
+            stages.put(GL_GEOMETRY_SHADER, this.geometryProgram);
+        }
+        return stages;
+    }
+
+    @Unique
+    private Map<Integer, String> submitStages(ResourceProvider resourceProvider) throws IOException {
+        Map<Integer, String> sourcePacks = new HashMap<>();
+        for (Map.Entry<Integer, Program> entry : this.getStages().entrySet()) {
+            Program program = entry.getValue();
+            sourcePacks.put(entry.getKey(), VeilShaderLoader.submit(resourceProvider, program, entry.getKey()).sourcePackId());
+        }
+        return sourcePacks;
+    }
+
+    @Unique
+    private void checkStages(Map<Integer, String> sourcePacks) throws IOException {
+        for (Map.Entry<Integer, Program> entry : this.getStages().entrySet()) {
+            Program program = entry.getValue();
+            VeilShaderLoader.checkCompileStatus(((ProgramAccessor) program).getId(), entry.getKey(), program.getName(), sourcePacks.get(entry.getKey()));
         }
+    }
 
+    @Override
+    public void recompile(ResourceProvider resourceProvider) throws IOException {
+        this.checkStages(this.submitStages(resourceProvider));
+
+        // Stages may have moved to different shader objects, so attach them again from scratch
+        int[] attached = new int[GlStateManager.glGetProgrami(this.programId, GL_ATTACHED_SHADERS)];
+        glGetAttachedShaders(this.programId, null, attached);
+        for (int shader : attached) {
+            glDetachShader(this.programId, shader);
+        }
         ProgramManager.linkShader((ShaderInstance) (Object) this);
         this.updateLocations();
     }
 
+    @Override
+    public CompletableFuture<Void> recompileAsync(ResourceProvider resourceProvider) {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        Map<Integer, String> sourcePacks;
+        try {
+            sourcePacks = this.submitStages(resourceProvider);
+        } catch (IOException e) {
+            future.completeExceptionally(e);
+            return future;
+        }
+
+        // Link into a new program so the current one keeps rendering until the driver is done
+        int program = ProgramManager.createProgram();
+        if (this.attributeNames != null) {
+            int i = 0;
+            for (String attribute : this.vertexFormat.getElementAttributeNames()) {
+                Uniform.glBindAttribLocation(program, i++, attribute);
+            }
+        }
+        for (Program stage : this.getStages().values()) {
+            GlStateManager.glAttachShader(program, ((ProgramAccessor) stage).getId());
+        }
+        ShaderStatistics.Timer timer = ShaderStatistics.start(this.name, ShaderStatistics.Phase.LINK);
+        GlStateManager.glLinkProgram(program);
+
+        VeilShaderLoader.schedule(() -> VeilShaderLoader.isLinkComplete(program), () -> {
+            try {
+                this.checkStages(sourcePacks);
+                if (GlStateManager.glGetProgrami(program, GL_LINK_STATUS) == 0) {
+                    throw new IOException("Couldn't link shader (" + this.name + ") : " + StringUtils.trim(GlStateManager.glGetProgramInfoLog(program, 32768)));
+                }
+            } catch (IOException e) {
+                GlStateManager.glDeleteProgram(program);
+                future.completeExceptionally(e);
+                return;
+            }
+
+            timer.end();
+            // Linked directly instead of through ProgramManager, so the block binding has to be set here
+            VeilFrameUniforms.bind(program);
+            if (lastProgramId == this.programId) {
+                lastProgramId = -1;
+            }
+            GlStateManager.glDeleteProgram(this.programId);
+            this.programId = program;
+            this.updateLocations();
+            ((ShaderInstance) (Object) this).markDirty();
+            future.complete(null);
+        });
+        return future;
+    }
+
     @Nullable
     @Override
     public Program getGeometryProgram() {
         return geometryProgram;
     }
 
+    @Nullable
+    @Override
+    public Program getTessControlProgram() {
+        return tessControlProgram;
+    }
+
+    @Nullable
+    @Override
+    public Program getTessEvaluationProgram() {
+        return tessEvaluationProgram;
+    }
+
+    @Override
+    public int getPatchVertices() {
+        return patchVertices;
+    }
+
     @Override
     public void free() {
         if (this.geometryProgram != null) {
             this.geometryProgram.close();
         }
+        if (this.tessControlProgram != null) {
+            this.tessControlProgram.close();
+        }
+        if (this.tessEvaluationProgram != null) {
+            this.tessEvaluationProgram.close();
+        }
         this.geometryProgram = null;
+        this.tessControlProgram = null;
+        this.tessEvaluationProgram = null;
     }
 }
@@ -1,33 +1,133 @@
 package foundry.veil.postprocessing;
 
+import foundry.veil.Veil;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
 import net.minecraft.client.renderer.EffectInstance;
+import org.lwjgl.opengl.GL;
+import org.lwjgl.opengl.GLCapabilities;
+import org.lwjgl.system.MemoryUtil;
 
-import static org.lwjgl.opengl.GL31.*;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
 
+import static org.lwjgl.opengl.GL44C.*;
+
+/**
+ * A buffer of floats that is written every frame. It is read by shaders either as a <code>samplerBuffer</code> or,
+ * in storage mode, as a <code>std430</code> shader storage block which requires OpenGL 4.3.
+ * <p>
+ * When buffer storage is supported the buffer is persistently mapped and split into {@link #SECTIONS} sections used
+ * in turn, so data is written straight into memory the GPU reads from without waiting for the previous frame.
+ * Otherwise the buffer is orphaned and filled from an off-heap staging buffer every frame.
+ * Persistent mapping can be disabled with <code>-Dveil.persistentBuffers=false</code>.
+ * <p>
+ * Data that didn't change can be kept: memory returned by {@link #begin(int)} still contains what was written
+ * {@link #getCopies()} frames ago, so only ranges that changed since then have to be written, marked with
+ * {@link #markDirty(int, int)} and submitted with {@link #endDirty()}.
+ */
 public class DataBuffer {
+    public static final int SECTIONS = 3;
+    private static final boolean PERSISTENT = Boolean.parseBoolean(System.getProperty("veil.persistentBuffers", "true"));
+    // Waiting for a fence should never take this long, so write anyway instead of hanging if the driver misbehaves
+    private static final long FENCE_TIMEOUT = 1_000_000_000L;
+
     private int tbo = 0;
     private int tex = 0;
 
+    private long size;
+    private boolean storage;
+    private int binding;
+    private int target = GL_TEXTURE_BUFFER;
+    private int format = GL_R32F;
+    private boolean persistent;
+    private long sectionSize;
+    private final long[] fences = new long[SECTIONS];
+    private int section;
+    private ByteBuffer mapped;
+    private FloatBuffer staging;
+    private FloatBuffer writing;
+    private long rangeOffset;
+    private long rangeSize;
+    private final IntArrayList dirty = new IntArrayList();
+    private long uploadedBytes;
+
     /**
      * Generate or regenerate TBO and texture
      * @param size the size of the buffer (how many float numbers it can store)
      */
     public void generate(long size) {
+        generate(size, false);
+    }
+
+    /**
+     * Generate or regenerate the buffer
+     * @param size the size of the buffer (how many float numbers it can store)
+     * @param storage whether to use a shader storage buffer instead of a texture buffer, ignored if it isn't supported
+     */
+    public void generate(long size, boolean storage) {
+        generate(size, storage, GL_R32F);
+    }
+
+    /**
+     * Generate or regenerate the buffer
+     * @param size the size of the buffer (how many 32-bit values it can store)
+     * @param storage whether to use a shader storage buffer instead of a texture buffer, ignored if it isn't supported
+     * @param format the format of the texture buffer, <code>GL_R32F</code> or <code>GL_R32UI</code>
+     */
+    public void generate(long size, boolean storage, int format) {
         destroy();
 
+        this.format = format;
+        this.size = size;
+        this.storage = storage && isStorageSupported();
+        target = this.storage ? GL_SHADER_STORAGE_BUFFER : GL_TEXTURE_BUFFER;
+        persistent = PERSISTENT && isPersistentSupported();
+
         tbo = glGenBuffers();
-        glBindBuffer(GL_TEXTURE_BUFFER, tbo);
-        glBufferData(GL_TEXTURE_BUFFER, size * 4, GL_STATIC_DRAW);
+        glBindBuffer(target, tbo);
+        if (persistent) {
+            // Every section has to start at an offset the texture or storage block can point to
+            long alignment = glGetInteger(this.storage ? GL_SHADER_STORAGE_BUFFER_OFFSET_ALIGNMENT : GL_TEXTURE_BUFFER_OFFSET_ALIGNMENT);
+            sectionSize = (size * 4 + alignment - 1) / alignment * alignment;
 
-        tex = glGenTextures();
-        glBindTexture(GL_TEXTURE_BUFFER, tex);
-        glTexBuffer(GL_TEXTURE_BUFFER, GL_R32F, tbo);
+            int flags = GL_MAP_WRITE_BIT | GL_MAP_PERSISTENT_BIT | GL_MAP_COHERENT_BIT;
+            glBufferStorage(target, sectionSize * SECTIONS, flags);
+            mapped = glMapBufferRange(target, 0, sectionSize * SECTIONS, flags);
+            section = 0;
+        } else {
+            glBufferData(target, size * 4, GL_STREAM_DRAW);
+            staging = MemoryUtil.memAllocFloat((int) size);
+        }
+        glBindBuffer(target, 0);
 
-        glBindBuffer(GL_TEXTURE_BUFFER, 0);
-        glBindTexture(GL_TEXTURE_BUFFER, 0);
+        if (!this.storage) {
+            tex = glGenTextures();
+            glBindTexture(GL_TEXTURE_BUFFER, tex);
+            glTexBuffer(GL_TEXTURE_BUFFER, format, tbo);
+            glBindTexture(GL_TEXTURE_BUFFER, 0);
+        }
     }
 
     public void destroy() {
+        for (int i = 0; i < SECTIONS; i++) {
+            if (fences[i] != 0) {
+                glDeleteSync(fences[i]);
+                fences[i] = 0;
+            }
+        }
+        if (mapped != null) {
+            glBindBuffer(target, tbo);
+            glUnmapBuffer(target);
+            glBindBuffer(target, 0);
+            mapped = null;
+        }
+        if (staging != null) {
+            MemoryUtil.memFree(staging);
+            staging = null;
+        }
+        writing = null;
+        dirty.clear();
+
         if (tbo != 0)
             glDeleteBuffers(tbo);
         if (tex != 0)
@@ -36,19 +136,202 @@ public class DataBuffer {
         tex = 0;
     }
 
+    /**
+     * Start writing the data for this frame. The data must be written to the returned buffer from position 0 and
+     * submitted with {@link #end()}
+     * @param count how many floats will be written
+     * @return the memory to write to
+     */
+    public FloatBuffer begin(int count) {
+        if (count > size)
+            throw new IllegalArgumentException("Tried to write " + count + " floats to a data buffer of size " + size);
+
+        if (persistent) {
+            // The commands reading the previous section have all been submitted by now
+            fences[section] = glFenceSync(GL_SYNC_GPU_COMMANDS_COMPLETE, 0);
+            section = (section + 1) % SECTIONS;
+            waitFence(section);
+            writing = MemoryUtil.memFloatBuffer(MemoryUtil.memAddress(mapped) + section * sectionSize, count);
+        } else {
+            writing = staging.clear().limit(count);
+        }
+        return writing;
+    }
+
+    /**
+     * Submit all data written since {@link #begin(int)}
+     */
+    public void end() {
+        if (writing == null)
+            throw new IllegalStateException("Data buffer is not being written");
+
+        int count = writing.limit();
+        setRange(count);
+        if (!persistent) {
+            glBindBuffer(target, tbo);
+            // Orphan the buffer so the driver doesn't wait for the previous frame to finish reading it
+            glBufferData(target, size * 4, GL_STREAM_DRAW);
+            glBufferSubData(target, 0, writing.position(0));
+            glBindBuffer(target, 0);
+        }
+        uploadedBytes = count * 4L;
+        dirty.clear();
+        writing = null;
+    }
+
+    /**
+     * Mark values written since {@link #begin(int)} as changed. Ranges should be marked in ascending order
+     * @param offset the index of the first changed value
+     * @param count how many values changed
+     */
+    public void markDirty(int offset, int count) {
+        if (count <= 0)
+            return;
+
+        int last = dirty.size() - 1;
+        if (last > 0 && dirty.getInt(last) == offset) {
+            dirty.set(last, offset + count);
+        } else {
+            dirty.add(offset);
+            dirty.add(offset + count);
+        }
+    }
+
+    /**
+     * Submit the ranges marked with {@link #markDirty(int, int)} since {@link #begin(int)}, keeping the rest of the data
+     */
+    public void endDirty() {
+        if (writing == null)
+            throw new IllegalStateException("Data buffer is not being written");
+
+        int count = writing.limit();
+        setRange(count);
+        uploadedBytes = 0;
+        if (!persistent && !dirty.isEmpty())
+            glBindBuffer(target, tbo);
+        for (int i = 0; i < dirty.size(); i += 2) {
+            int start = dirty.getInt(i);
+            int end = Math.min(dirty.getInt(i + 1), count);
+            if (start >= end)
+                continue;
+
+            // Mapped memory is coherent, so it only has to be counted
+            if (!persistent)
+                glBufferSubData(target, start * 4L, writing.limit(end).position(start));
+            uploadedBytes += (end - start) * 4L;
+        }
+        if (!persistent && !dirty.isEmpty())
+            glBindBuffer(target, 0);
+        dirty.clear();
+        writing = null;
+    }
+
+    private void setRange(int count) {
+        rangeOffset = persistent ? section * sectionSize : 0;
+        rangeSize = Math.max(count, 1) * 4L;
+        if (persistent && !storage) {
+            glBindTexture(GL_TEXTURE_BUFFER, tex);
+            glTexBufferRange(GL_TEXTURE_BUFFER, format, tbo, rangeOffset, rangeSize);
+            glBindTexture(GL_TEXTURE_BUFFER, 0);
+        }
+    }
+
     public void upload(float[] data) {
-        glBindBuffer(GL_TEXTURE_BUFFER, tbo);
-        glBufferSubData(GL_TEXTURE_BUFFER, 0, data);
-        glBindBuffer(GL_TEXTURE_BUFFER, 0);
+        begin(data.length).put(data);
+        end();
     }
 
+    /**
+     * Bind the buffer for the specified effect
+     * @param uniform the name of the <code>samplerBuffer</code> uniform, or of the buffer block in storage mode
+     */
     public void apply(EffectInstance effect, String uniform) {
+        apply(effect, uniform, effect.samplerMap.size());
+    }
+
+    /**
+     * Bind the buffer for the specified effect
+     * @param uniform the name of the <code>samplerBuffer</code> uniform, or of the buffer block in storage mode
+     * @param unit the texture unit to bind a texture buffer to, which must not be used by a sampler of the effect
+     */
+    public void apply(EffectInstance effect, String uniform, int unit) {
+        if (storage) {
+            int index = glGetProgramResourceIndex(effect.getId(), GL_SHADER_STORAGE_BLOCK, uniform);
+            if (index != GL_INVALID_INDEX)
+                glShaderStorageBlockBinding(effect.getId(), index, binding);
+            glBindBufferRange(GL_SHADER_STORAGE_BUFFER, binding, tbo, rangeOffset, rangeSize);
+            return;
+        }
+
         glBindBuffer(GL_TEXTURE_BUFFER, tbo);
-        int unit = effect.samplerMap.size();
         glActiveTexture(GL_TEXTURE0 + unit);
         glBindTexture(GL_TEXTURE_BUFFER, tex);
 
         effect.safeGetUniform(uniform).set(unit);
         glActiveTexture(GL_TEXTURE0);
     }
+
+    /**
+     * @return how many frames ago the memory returned by {@link #begin(int)} was last written
+     */
+    public int getCopies() {
+        return persistent ? SECTIONS : 1;
+    }
+
+    /**
+     * @return how many bytes were written to the buffer the last time it was submitted
+     */
+    public long getUploadedBytes() {
+        return uploadedBytes;
+    }
+
+    /**
+     * Set the shader storage binding point used in storage mode, 0 by default
+     */
+    public void setBinding(int binding) {
+        this.binding = binding;
+    }
+
+    /**
+     * @return whether the buffer is a shader storage buffer
+     */
+    public boolean isStorage() {
+        return storage;
+    }
+
+    /**
+     * @return how many floats the buffer can store
+     */
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * @return whether the buffer is persistently mapped
+     */
+    public boolean isPersistent() {
+        return persistent;
+    }
+
+    private void waitFence(int section) {
+        long fence = fences[section];
+        if (fence == 0)
+            return;
+
+        int result = glClientWaitSync(fence, GL_SYNC_FLUSH_COMMANDS_BIT, FENCE_TIMEOUT);
+        if (result == GL_TIMEOUT_EXPIRED || result == GL_WAIT_FAILED)
+            Veil.LOGGER.warn("Timed out waiting for the GPU to finish reading a data buffer");
+        glDeleteSync(fence);
+        fences[section] = 0;
+    }
+
+    public static boolean isStorageSupported() {
+        GLCapabilities caps = GL.getCapabilities();
+        return caps.OpenGL43 || caps.GL_ARB_shader_storage_buffer_object && caps.GL_ARB_program_interface_query;
+    }
+
+    public static boolean isPersistentSupported() {
+        GLCapabilities caps = GL.getCapabilities();
+        return (caps.OpenGL44 || caps.GL_ARB_buffer_storage) && (caps.OpenGL43 || caps.GL_ARB_texture_buffer_range);
+    }
 }
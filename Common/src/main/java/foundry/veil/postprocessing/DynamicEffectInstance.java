@@ -1,11 +1,20 @@
 package foundry.veil.postprocessing;
 
+import com.mojang.math.Vector3f;
+
+import javax.annotation.Nullable;
 import java.util.function.BiConsumer;
 
 public abstract class DynamicEffectInstance {
     private float time = 0F;
+    private float lifetime = Float.POSITIVE_INFINITY;
+    float spawnTime;
 
-    private boolean removed;
+    private volatile boolean removed;
+    volatile boolean dirty = true;
+    long handle = InstanceSlotMap.INVALID_HANDLE;
+    // How many more frames the data has to be written, see DataBuffer#getCopies()
+    int uploads;
 
     /**
      * Called every frame (before the effect is rendered)
@@ -15,11 +24,96 @@ public abstract class DynamicEffectInstance {
     }
 
     /**
-     * Write this fx instance's data to the texture buffer to upload them to the shader
+     * Whether {@link #update(double)} has to be called every frame. Instances that only change through
+     * {@link InstanceAnimation animations} and expire after their {@link #setLifetime(float) lifetime} can return false,
+     * in which case {@link #getTime()} stays 0
+     */
+    protected boolean needsUpdate() {
+        return true;
+    }
+
+    /**
+     * Remove this instance automatically the specified time after it spawned. Only has an effect before it is added
+     * @param lifetime the time in seconds, infinite by default
+     */
+    public DynamicEffectInstance setLifetime(float lifetime) {
+        this.lifetime = lifetime;
+        return this;
+    }
+
+    public float getLifetime() {
+        return lifetime;
+    }
+
+    /**
+     * @return the time of the processor when this instance was added, which animations are relative to
+     */
+    public final float getSpawnTime() {
+        return spawnTime;
+    }
+
+    /**
+     * Write this fx instance's data to the texture buffer to upload them to the shader.
+     * Override this or {@link #writeDataToBuffer(BiConsumer)}
+     * @param writer for writing data to the texture buffer, only valid during this call
+     */
+    public void writeData(InstanceDataWriter writer) {
+        writeDataToBuffer(writer);
+    }
+
+    /**
+     * Write this fx instance's data to the texture buffer to upload them to the shader. Writes nothing by default
      * @param writer for writing data to the texture buffer
+     * @deprecated boxes every value, override {@link #writeData(InstanceDataWriter)} instead
+     */
+    @Deprecated
+    public void writeDataToBuffer(BiConsumer<Integer, Float> writer) {
+    }
+
+    /**
+     * The center of a sphere outside of which this instance doesn't change any pixel, used to skip the rest of the screen
+     * @return the center in world space, or null if the instance may change any pixel
      */
-    public abstract void writeDataToBuffer(BiConsumer<Integer, Float> writer);
+    @Nullable
+    public Vector3f getBoundingCenter() {
+        return null;
+    }
+
+    /**
+     * @param time the current time of the processor, to evaluate animations with, see {@link #getSpawnTime()}
+     * @return the radius of the sphere around {@link #getBoundingCenter()}
+     */
+    public float getBoundingRadius(float time) {
+        return Float.POSITIVE_INFINITY;
+    }
+
+    /**
+     * When a processor has more instances than its budget allows, instances with a lower priority are removed first.
+     * Read once when the instance is added
+     * @return the priority of this fx instance, 0 by default
+     */
+    public int getPriority() {
+        return 0;
+    }
 
+    /**
+     * Whether this instance calls {@link #markDirty()} whenever the data written by {@link #writeData(InstanceDataWriter)} changes.
+     * Instances that don't are written every frame
+     */
+    protected boolean tracksChanges() {
+        return false;
+    }
+
+    /**
+     * Write the data of this instance again the next frame. Only needed if {@link #tracksChanges()} is true
+     */
+    public final void markDirty() {
+        dirty = true;
+    }
+
+    /**
+     * Remove this instance before the next frame. May be called from any thread
+     */
     public final void remove() {
         removed = true;
     }
@@ -28,6 +122,13 @@ public abstract class DynamicEffectInstance {
         return removed;
     }
 
+    /**
+     * @return the handle of this instance in its processor, or {@link InstanceSlotMap#INVALID_HANDLE} if it hasn't been added yet or was removed
+     */
+    public final long getHandle() {
+        return handle;
+    }
+
     /**
      * @return the time since update() was called for the first time (in seconds)
      */
@@ -0,0 +1,39 @@
+package foundry.veil.postprocessing;
+
+import foundry.veil.math.Easings;
+import net.minecraft.util.Mth;
+
+/**
+ * A value that eases from one value to another, evaluated by the shader from the data written when the instance
+ * spawns. Written to {@link InstanceLayout.Type#ANIMATED animated} layout fields with
+ * {@link InstanceDataWriter#putAnimation(InstanceLayout.Field, InstanceAnimation, float)}.
+ *
+ * @param delay    the time from the spawn of the instance to the start of the animation in seconds
+ * @param duration the length of the animation in seconds
+ */
+public record InstanceAnimation(float from, float to, float delay, float duration, Easings.Easing easing) {
+
+    public static InstanceAnimation constant(float value) {
+        return new InstanceAnimation(value, value, 0F, 0F, Easings.Easing.linear);
+    }
+
+    public static InstanceAnimation of(float from, float to, float duration, Easings.Easing easing) {
+        return new InstanceAnimation(from, to, 0F, duration, easing);
+    }
+
+    /**
+     * Evaluate the animation the same way the generated GLSL does
+     * @param time the time since the spawn of the instance in seconds
+     */
+    public float evaluate(float time) {
+        float x = duration > 0F ? Mth.clamp((time - delay) / duration, 0F, 1F) : 1F;
+        return Mth.lerp(easing.ease(x), from, to);
+    }
+
+    /**
+     * @return the time from the spawn of the instance to the end of the animation in seconds
+     */
+    public float getEnd() {
+        return delay + Math.max(duration, 0F);
+    }
+}
@@ -0,0 +1,175 @@
+package foundry.veil.postprocessing;
+
+import com.mojang.math.Vector3f;
+import foundry.veil.color.Color;
+import org.lwjgl.system.MemoryUtil;
+
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+import java.util.function.BiConsumer;
+
+/**
+ * Writes the data of fx instances into a {@link DataBuffer} without allocating.
+ * <p>
+ * Values are written one after another starting at the beginning of the current instance's data, like a cursor,
+ * or to the fields of an {@link InstanceLayout}. Each instance is assembled in a small scratch array and copied to
+ * the buffer in one go, since the buffer may be mapped memory that is slow to read back.
+ * The writer is reused for every instance and every frame, so it must not be kept by instances.
+ * It also accepts the index based writes of {@link DynamicEffectInstance#writeDataToBuffer(BiConsumer)}.
+ */
+public class InstanceDataWriter implements BiConsumer<Integer, Float> {
+    private long address;
+    private int instanceSize;
+    private int[] scratch = new int[0];
+    private int instance;
+    private int position;
+
+    /**
+     * Start writing into the specified memory
+     * @param instanceSize how many 32-bit values one instance may write
+     */
+    void begin(FloatBuffer buffer, int instanceSize) {
+        this.address = MemoryUtil.memAddress(buffer);
+        this.instanceSize = instanceSize;
+        if (scratch.length < instanceSize)
+            scratch = new int[instanceSize];
+    }
+
+    /**
+     * Move to the data of the instance with the specified index
+     */
+    void beginInstance(int index) {
+        instance = index;
+        position = 0;
+        Arrays.fill(scratch, 0, instanceSize, 0);
+    }
+
+    /**
+     * Copy the data of the current instance to the buffer
+     */
+    void endInstance() {
+        long start = address + (long) instance * instanceSize * 4L;
+        for (int i = 0; i < instanceSize; i++)
+            MemoryUtil.memPutInt(start + i * 4L, scratch[i]);
+    }
+
+    public InstanceDataWriter put(float value) {
+        if (position >= instanceSize)
+            throw new IndexOutOfBoundsException(position);
+        scratch[position++] = Float.floatToRawIntBits(value);
+        return this;
+    }
+
+    /**
+     * Write a value at an index relative to the start of the current instance, without moving the cursor
+     */
+    public InstanceDataWriter put(int index, float value) {
+        if (index >= instanceSize || index < 0)
+            throw new IndexOutOfBoundsException(index);
+        scratch[index] = Float.floatToRawIntBits(value);
+        return this;
+    }
+
+    public InstanceDataWriter putVec3(float x, float y, float z) {
+        return put(x).put(y).put(z);
+    }
+
+    public InstanceDataWriter putVec3(Vector3f vector) {
+        return putVec3(vector.x(), vector.y(), vector.z());
+    }
+
+    /**
+     * Write the red, green and blue channels of a color
+     */
+    public InstanceDataWriter putColor(Color color) {
+        return putVec3(color.getRed(), color.getGreen(), color.getBlue());
+    }
+
+    /**
+     * Write the red, green, blue and alpha channels of a color
+     */
+    public InstanceDataWriter putColorAlpha(Color color) {
+        return putColor(color).put(color.getAlpha());
+    }
+
+    /**
+     * Leave the specified amount of values at 0
+     */
+    public InstanceDataWriter skip(int count) {
+        if (position + count > instanceSize)
+            throw new IndexOutOfBoundsException(position + count);
+        position += count;
+        return this;
+    }
+
+    /**
+     * Write a {@link InstanceLayout.Type#FLOAT float}, {@link InstanceLayout.Type#HALF half} or {@link InstanceLayout.Type#UNORM8 unorm8} field,
+     * or an {@link InstanceLayout.Type#ANIMATED animated} field that keeps the value
+     */
+    public InstanceDataWriter put(InstanceLayout.Field field, float value) {
+        switch (field.type()) {
+            case FLOAT -> putWord(field.word(), Float.floatToRawIntBits(value));
+            case ANIMATED -> putAnimation(field, InstanceAnimation.constant(value), 0F);
+            case HALF -> putBits(field, InstanceLayout.toHalf(value), 0xFFFF);
+            case UNORM8 -> putBits(field, toUnorm8(value), 0xFF);
+            default -> throw new IllegalArgumentException("Field " + field.name() + " is a " + field.type() + ", not a scalar");
+        }
+        return this;
+    }
+
+    public InstanceDataWriter putVec3(InstanceLayout.Field field, float x, float y, float z) {
+        if (field.type() != InstanceLayout.Type.VEC3)
+            throw new IllegalArgumentException("Field " + field.name() + " is a " + field.type() + ", not a vec3");
+        putWord(field.word(), Float.floatToRawIntBits(x));
+        putWord(field.word() + 1, Float.floatToRawIntBits(y));
+        putWord(field.word() + 2, Float.floatToRawIntBits(z));
+        return this;
+    }
+
+    public InstanceDataWriter putVec3(InstanceLayout.Field field, Vector3f vector) {
+        return putVec3(field, vector.x(), vector.y(), vector.z());
+    }
+
+    public InstanceDataWriter putColor(InstanceLayout.Field field, Color color) {
+        if (field.type() != InstanceLayout.Type.COLOR)
+            throw new IllegalArgumentException("Field " + field.name() + " is a " + field.type() + ", not a color");
+        putWord(field.word(), toUnorm8(color.getRed()) | toUnorm8(color.getGreen()) << 8 | toUnorm8(color.getBlue()) << 16 | toUnorm8(color.getAlpha()) << 24);
+        return this;
+    }
+
+    /**
+     * Write an {@link InstanceLayout.Type#ANIMATED animated} field
+     * @param spawnTime the time the instance spawned, see {@link DynamicEffectInstance#getSpawnTime()}
+     */
+    public InstanceDataWriter putAnimation(InstanceLayout.Field field, InstanceAnimation animation, float spawnTime) {
+        if (field.type() != InstanceLayout.Type.ANIMATED)
+            throw new IllegalArgumentException("Field " + field.name() + " is a " + field.type() + ", not animated");
+        putWord(field.word(), Float.floatToRawIntBits(spawnTime + animation.delay()));
+        putWord(field.word() + 1, Float.floatToRawIntBits(animation.duration()));
+        putWord(field.word() + 2, Float.floatToRawIntBits(animation.from()));
+        putWord(field.word() + 3, Float.floatToRawIntBits(animation.to()));
+        putWord(field.word() + 4, animation.easing().ordinal());
+        return this;
+    }
+
+    private void putWord(int word, int bits) {
+        if (word >= instanceSize)
+            throw new IndexOutOfBoundsException(word);
+        scratch[word] = bits;
+    }
+
+    private void putBits(InstanceLayout.Field field, int bits, int mask) {
+        if (field.word() >= instanceSize)
+            throw new IndexOutOfBoundsException(field.word());
+        scratch[field.word()] = scratch[field.word()] & ~(mask << field.shift()) | (bits & mask) << field.shift();
+    }
+
+    private static int toUnorm8(float value) {
+        return Math.round(Math.max(0F, Math.min(1F, value)) * 255F);
+    }
+
+    @Override
+    public void accept(Integer index, Float value) {
+        put(index, value);
+    }
+}
@@ -0,0 +1,322 @@
+package foundry.veil.postprocessing;
+
+import foundry.veil.shader.ShaderIncludeCache;
+import net.minecraft.resources.ResourceLocation;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Describes the data of one fx instance as a list of typed fields, packed into 32-bit words.
+ * <p>
+ * Every field is aligned to its own size, so small fields declared next to each other share a word. The layout
+ * generates a GLSL include with a struct and a function reading it from the data buffer, so shaders don't need to
+ * know the offsets. Fields are written with {@link InstanceDataWriter#put(Field, float)} and friends.
+ * <p>
+ * Half floats have about 3 significant digits, so values that change smoothly over a large range like radii should
+ * stay full floats.
+ * <p>
+ * {@link Type#ANIMATED Animated} fields store an {@link InstanceAnimation} that the shader evaluates with the easings
+ * from <code>veil:easings</code>, so instances that only animate are written once. Layouts with animated fields take
+ * the current time as a second parameter of the generated function.
+ */
+public class InstanceLayout {
+    private final String name;
+    private final String bufferName;
+    private final List<Field> fields;
+    private final Map<String, Field> fieldsByName;
+    private final int stride;
+
+    private InstanceLayout(String name, String bufferName, List<Field> fields, int stride) {
+        this.name = name;
+        this.bufferName = bufferName;
+        this.fields = Collections.unmodifiableList(fields);
+        this.fieldsByName = new HashMap<>();
+        for (Field field : fields)
+            fieldsByName.put(field.name(), field);
+        this.stride = stride;
+    }
+
+    /**
+     * @param name       the name of the generated GLSL struct, for example <code>EnergyScan</code>
+     * @param bufferName the name of the data buffer uniform declared by the generated include
+     */
+    public static Builder builder(String name, String bufferName) {
+        return new Builder(name, bufferName);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return the name of the data buffer uniform, pass it to {@link InstantiatedPostProcessor#setDataBufferUniform(net.minecraft.client.renderer.EffectInstance, String, String)}
+     */
+    public String getBufferName() {
+        return bufferName;
+    }
+
+    public List<Field> getFields() {
+        return fields;
+    }
+
+    public Field getField(String name) {
+        Field field = fieldsByName.get(name);
+        if (field == null)
+            throw new IllegalArgumentException("Instance layout " + this.name + " has no field " + name);
+        return field;
+    }
+
+    /**
+     * @return the size of one instance in 32-bit words
+     */
+    public int getStride() {
+        return stride;
+    }
+
+    /**
+     * @return whether any field is {@link Type#ANIMATED animated}
+     */
+    public boolean isAnimated() {
+        for (Field field : fields) {
+            if (field.type() == Type.ANIMATED)
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Register the generated GLSL for this layout as an include
+     * @param location the location of the include, for example <code>veil:shaders/include/instance/foo.glsl</code> to import <code>veil:instance/foo</code>
+     * @param storage whether the data is read from a shader storage buffer instead of a texture buffer
+     * @return whether the include changed
+     */
+    public boolean register(ResourceLocation location, boolean storage) {
+        return ShaderIncludeCache.register(location, getSource(storage));
+    }
+
+    /**
+     * Generate the GLSL declaring the data buffer, a struct with every field and <code>&lt;name&gt; get&lt;name&gt;(int instance)</code>,
+     * or <code>&lt;name&gt; get&lt;name&gt;(int instance, float time)</code> if the layout {@link #isAnimated() is animated}.
+     * A texture buffer is declared as a <code>usamplerBuffer</code>, a storage buffer as a <code>std430</code> block which requires GLSL 4.30
+     */
+    public String getSource(boolean storage) {
+        String guard = "VEIL_INSTANCE_" + name.toUpperCase(Locale.ROOT);
+        StringBuilder source = new StringBuilder();
+        source.append("// Generated from the instance layout ").append(name).append('\n');
+        source.append("#ifndef ").append(guard).append('\n');
+        source.append("#define ").append(guard).append("\n\n");
+
+        boolean animated = isAnimated();
+        if (animated)
+            source.append("#moj_import <veil:easings>\n\n");
+
+        if (storage) {
+            source.append("layout(std430) readonly buffer ").append(bufferName).append(" {\n");
+            source.append("    uint ").append(bufferName).append("_words[];\n");
+            source.append("};\n\n");
+            source.append("uint ").append(bufferName).append("_word(int index) {\n");
+            source.append("    return ").append(bufferName).append("_words[index];\n");
+        } else {
+            source.append("uniform usamplerBuffer ").append(bufferName).append(";\n\n");
+            source.append("uint ").append(bufferName).append("_word(int index) {\n");
+            source.append("    return texelFetch(").append(bufferName).append(", index).r;\n");
+        }
+        source.append("}\n\n");
+
+        // unpackHalf2x16 and unpackUnorm4x8 need GLSL 4.00 or newer, so decode by hand
+        source.append("""
+                #ifndef VEIL_INSTANCE_UNPACK
+                #define VEIL_INSTANCE_UNPACK
+                float veil_unpackHalf(uint bits) {
+                    uint exponent = (bits >> 10u) & 31u;
+                    float mantissa = float(bits & 1023u);
+                    float sign = (bits & 32768u) != 0u ? -1.0 : 1.0;
+                    if (exponent == 0u) {
+                        return sign * mantissa * 5.9604645e-8;
+                    }
+                    return sign * (1.0 + mantissa / 1024.0) * exp2(float(exponent) - 15.0);
+                }
+
+                vec4 veil_unpackUnorm4x8(uint bits) {
+                    return vec4(bits & 255u, (bits >> 8u) & 255u, (bits >> 16u) & 255u, bits >> 24u) / 255.0;
+                }
+                #endif
+
+                """);
+
+        if (animated) {
+            // Start time, duration, from, to and easing, see InstanceDataWriter#putAnimation
+            String word = bufferName + "_word(index";
+            source.append("float ").append(bufferName).append("_animate(int index, float time) {\n");
+            source.append("    float start = uintBitsToFloat(").append(word).append("));\n");
+            source.append("    float duration = uintBitsToFloat(").append(word).append(" + 1));\n");
+            source.append("    float x = duration > 0.0 ? clamp((time - start) / duration, 0.0, 1.0) : 1.0;\n");
+            source.append("    return mix(uintBitsToFloat(").append(word).append(" + 2)), uintBitsToFloat(").append(word)
+                    .append(" + 3)), veil_ease(x, int(").append(word).append(" + 4))));\n");
+            source.append("}\n\n");
+        }
+
+        source.append("const int ").append(name).append("_STRIDE = ").append(stride).append(";\n\n");
+        source.append("struct ").append(name).append(" {\n");
+        for (Field field : fields)
+            source.append("    ").append(field.type().glslType).append(' ').append(field.name()).append(";\n");
+        source.append("};\n\n");
+
+        source.append(name).append(" get").append(name).append(animated ? "(int instance, float time) {\n" : "(int instance) {\n");
+        source.append("    int base = instance * ").append(name).append("_STRIDE;\n");
+        source.append("    ").append(name).append(" value;\n");
+        for (Field field : fields) {
+            String word = bufferName + "_word(base + " + field.word() + ")";
+            source.append("    value.").append(field.name()).append(" = ");
+            switch (field.type()) {
+                case FLOAT -> source.append("uintBitsToFloat(").append(word).append(')');
+                case VEC3 -> source.append("vec3(uintBitsToFloat(").append(word)
+                        .append("), uintBitsToFloat(").append(bufferName).append("_word(base + ").append(field.word() + 1)
+                        .append(")), uintBitsToFloat(").append(bufferName).append("_word(base + ").append(field.word() + 2).append(")))");
+                case HALF -> source.append("veil_unpackHalf((").append(word).append(" >> ").append(field.shift()).append("u) & 65535u)");
+                case UNORM8 -> source.append("float((").append(word).append(" >> ").append(field.shift()).append("u) & 255u) / 255.0");
+                case COLOR -> source.append("veil_unpackUnorm4x8(").append(word).append(')');
+                case ANIMATED -> source.append(bufferName).append("_animate(base + ").append(field.word()).append(", time)");
+            }
+            source.append(";\n");
+        }
+        source.append("    return value;\n");
+        source.append("}\n\n");
+        source.append("#endif\n");
+        return source.toString();
+    }
+
+    /**
+     * Convert a float to the bits of the closest half float
+     */
+    public static int toHalf(float value) {
+        int bits = Float.floatToIntBits(value);
+        int sign = (bits >>> 16) & 0x8000;
+        int exponent = ((bits >>> 23) & 0xFF) - 127 + 15;
+        int mantissa = bits & 0x7FFFFF;
+
+        if (exponent >= 31) {
+            // Too large, infinity or NaN
+            boolean nan = ((bits >>> 23) & 0xFF) == 0xFF && mantissa != 0;
+            return sign | 0x7C00 | (nan ? 0x200 : 0);
+        }
+        if (exponent <= 0) {
+            // Subnormal or zero
+            if (exponent < -10)
+                return sign;
+            int shift = 14 - exponent;
+            return sign | (((mantissa | 0x800000) + (1 << (shift - 1))) >> shift);
+        }
+        // Rounding may carry into the exponent, which is still correct
+        return sign | ((exponent << 10) | (mantissa >> 13)) + ((mantissa >> 12) & 1);
+    }
+
+    public enum Type {
+        FLOAT(32, "float"),
+        VEC3(96, "vec3"),
+        HALF(16, "float"),
+        UNORM8(8, "float"),
+        /**
+         * RGBA with 8 bits per channel
+         */
+        COLOR(32, "vec4"),
+        /**
+         * A float animated by the shader, stored as the start time, duration, start and end values and easing
+         */
+        ANIMATED(160, "float");
+
+        private final int bits;
+        private final String glslType;
+
+        Type(int bits, String glslType) {
+            this.bits = bits;
+            this.glslType = glslType;
+        }
+
+        public int getBits() {
+            return bits;
+        }
+
+        private int getAlignment() {
+            return Math.min(bits, 32);
+        }
+    }
+
+    /**
+     * A field of an instance layout
+     * @param word  the index of the first word of the field in the instance
+     * @param shift the offset in bits of the field in its word, only non-zero for fields smaller than a word
+     */
+    public record Field(String name, Type type, int word, int shift) {
+    }
+
+    public static class Builder {
+        private final String name;
+        private final String bufferName;
+        private final List<Field> fields = new ArrayList<>();
+        private int bits;
+
+        private Builder(String name, String bufferName) {
+            this.name = name;
+            this.bufferName = bufferName;
+        }
+
+        public Builder addFloat(String name) {
+            return add(name, Type.FLOAT);
+        }
+
+        public Builder addVec3(String name) {
+            return add(name, Type.VEC3);
+        }
+
+        /**
+         * Add a 16-bit float
+         */
+        public Builder addHalf(String name) {
+            return add(name, Type.HALF);
+        }
+
+        /**
+         * Add a value from 0 to 1 stored in 8 bits
+         */
+        public Builder addUnorm8(String name) {
+            return add(name, Type.UNORM8);
+        }
+
+        /**
+         * Add an RGBA color stored in 32 bits
+         */
+        public Builder addColor(String name) {
+            return add(name, Type.COLOR);
+        }
+
+        /**
+         * Add a float animated by the shader, see {@link InstanceAnimation}
+         */
+        public Builder addAnimated(String name) {
+            return add(name, Type.ANIMATED);
+        }
+
+        public Builder add(String name, Type type) {
+            for (Field field : fields) {
+                if (field.name().equals(name))
+                    throw new IllegalArgumentException("Duplicate instance layout field " + name);
+            }
+
+            int alignment = type.getAlignment();
+            bits = (bits + alignment - 1) / alignment * alignment;
+            fields.add(new Field(name, type, bits / 32, bits % 32));
+            bits += type.getBits();
+            return this;
+        }
+
+        public InstanceLayout build() {
+            return new InstanceLayout(name, bufferName, new ArrayList<>(fields), Math.max((bits + 31) / 32, 1));
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package foundry.veil.postprocessing;
+
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Stores fx instances densely, in the order of their slots in the data buffer, and hands out handles that stay valid
+ * while the instances move.
+ * <p>
+ * Removing an instance moves the last instance into its place, which is marked dirty so it is written to its new slot.
+ * A handle combines an index into a table pointing at the dense position with the generation of that entry,
+ * so handles of removed instances never resolve to instances added later. Not thread safe.
+ */
+public class InstanceSlotMap<T extends DynamicEffectInstance> {
+    public static final long INVALID_HANDLE = -1L;
+
+    private final List<T> dense = new ArrayList<>();
+    private final IntArrayList denseToEntry = new IntArrayList();
+    private final IntArrayList entryToDense = new IntArrayList();
+    private final IntArrayList generations = new IntArrayList();
+    private final IntArrayList freeEntries = new IntArrayList();
+
+    /**
+     * Add an instance to the end
+     * @return the handle of the instance
+     */
+    public long add(T instance) {
+        int entry;
+        if (freeEntries.isEmpty()) {
+            entry = entryToDense.size();
+            entryToDense.add(dense.size());
+            generations.add(0);
+        } else {
+            entry = freeEntries.removeInt(freeEntries.size() - 1);
+            entryToDense.set(entry, dense.size());
+        }
+
+        dense.add(instance);
+        denseToEntry.add(entry);
+        instance.handle = toHandle(entry, generations.getInt(entry));
+        return instance.handle;
+    }
+
+    /**
+     * @return the instance with the specified handle or null if it has been removed
+     */
+    @Nullable
+    public T get(long handle) {
+        int index = indexOf(handle);
+        return index != -1 ? dense.get(index) : null;
+    }
+
+    /**
+     * @return the instance in the specified slot
+     */
+    public T get(int index) {
+        return dense.get(index);
+    }
+
+    public boolean contains(long handle) {
+        return indexOf(handle) != -1;
+    }
+
+    /**
+     * @return the slot of the instance with the specified handle or -1 if it has been removed
+     */
+    public int indexOf(long handle) {
+        int entry = (int) handle;
+        if (handle == INVALID_HANDLE || entry < 0 || entry >= generations.size() || generations.getInt(entry) != (int) (handle >>> 32))
+            return -1;
+        return entryToDense.getInt(entry);
+    }
+
+    public boolean remove(long handle) {
+        int index = indexOf(handle);
+        if (index == -1)
+            return false;
+        removeAt(index);
+        return true;
+    }
+
+    /**
+     * Remove the instance in the specified slot by moving the last instance into it
+     * @return the removed instance
+     */
+    public T removeAt(int index) {
+        int last = dense.size() - 1;
+        T removed = dense.get(index);
+        int entry = denseToEntry.getInt(index);
+
+        if (index != last) {
+            T moved = dense.get(last);
+            int movedEntry = denseToEntry.getInt(last);
+            dense.set(index, moved);
+            denseToEntry.set(index, movedEntry);
+            entryToDense.set(movedEntry, index);
+            moved.dirty = true;
+        }
+        dense.remove(last);
+        denseToEntry.removeInt(last);
+
+        // Invalidate every handle to the entry before it is reused
+        generations.set(entry, generations.getInt(entry) + 1);
+        entryToDense.set(entry, -1);
+        freeEntries.add(entry);
+        removed.handle = INVALID_HANDLE;
+        return removed;
+    }
+
+    /**
+     * Swap the instances in the specified slots, both are marked dirty so they are written to their new slots
+     */
+    public void swap(int first, int second) {
+        if (first == second)
+            return;
+
+        T firstInstance = dense.get(first);
+        T secondInstance = dense.get(second);
+        int firstEntry = denseToEntry.getInt(first);
+        int secondEntry = denseToEntry.getInt(second);
+        dense.set(first, secondInstance);
+        dense.set(second, firstInstance);
+        denseToEntry.set(first, secondEntry);
+        denseToEntry.set(second, firstEntry);
+        entryToDense.set(firstEntry, second);
+        entryToDense.set(secondEntry, first);
+        firstInstance.dirty = true;
+        secondInstance.dirty = true;
+    }
+
+    public int size() {
+        return dense.size();
+    }
+
+    public boolean isEmpty() {
+        return dense.isEmpty();
+    }
+
+    private static long toHandle(int entry, int generation) {
+        return (long) generation << 32 | entry & 0xFFFFFFFFL;
+    }
+}
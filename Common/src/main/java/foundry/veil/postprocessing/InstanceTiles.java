@@ -0,0 +1,178 @@
+package foundry.veil.postprocessing;
+
+import com.mojang.math.Matrix4f;
+import com.mojang.math.Vector3f;
+import com.mojang.math.Vector4f;
+import foundry.veil.Veil;
+import foundry.veil.shader.VeilFrameUniforms;
+import net.minecraft.client.Minecraft;
+import net.minecraft.client.renderer.EffectInstance;
+import net.minecraft.resources.ResourceLocation;
+import net.minecraft.world.phys.Vec3;
+import org.lwjgl.system.MemoryUtil;
+
+import java.util.Arrays;
+
+import static org.lwjgl.opengl.GL30.GL_R32UI;
+
+/**
+ * Splits the screen into tiles of {@link #TILE_SIZE} pixels and lists the instances whose bounds reach each tile,
+ * so shaders only loop over the instances that can change the pixel instead of all of them.
+ * <p>
+ * The lists are built on the CPU every frame with a counting sort and uploaded to a texture buffer of unsigned ints:
+ * an offset and a count for the instances without bounds and for every tile, followed by the instance indices of all lists.
+ * Instances without bounds reach every pixel, so they are listed once instead of in every tile.
+ * Shaders read the lists with the include <code>veil:instance_tiles</code>, see {@link #getSource()}.
+ */
+public class InstanceTiles {
+    public static final int TILE_SIZE = 16;
+    public static final ResourceLocation INCLUDE = Veil.veilPath("shaders/include/instance_tiles.glsl");
+    public static final String BUFFER_UNIFORM = "VeilTiles";
+    public static final String COLUMNS_UNIFORM = "VeilTileColumns";
+
+    private final DataBuffer buffer = new DataBuffer();
+    private final Vector4f corner = new Vector4f();
+    private final float[] bounds = new float[4];
+    // minColumn, minRow, maxColumn and maxRow (exclusive) of every instance, or -1 for instances without bounds
+    private int[] rects = new int[0];
+    private int[] counts = new int[0];
+    private int[] cursors = new int[0];
+    private int columns;
+    private int rows;
+    private int entries;
+
+    /**
+     * Bin the instances into the tiles of a screen of the specified size and upload the lists
+     * @param count how many instances to bin, starting with the first slot
+     * @param time the current time of the processor, see {@link DynamicEffectInstance#getBoundingRadius(float)}
+     */
+    public void update(InstanceSlotMap<?> instances, int count, float time, int width, int height) {
+        columns = (width + TILE_SIZE - 1) / TILE_SIZE;
+        rows = (height + TILE_SIZE - 1) / TILE_SIZE;
+        int tiles = columns * rows;
+        if (counts.length < tiles) {
+            counts = new int[tiles];
+            cursors = new int[tiles];
+        }
+        if (rects.length < count * 4)
+            rects = new int[count * 4];
+        Arrays.fill(counts, 0, tiles, 0);
+        int unbounded = 0;
+
+        Vec3 camera = Minecraft.getInstance().gameRenderer.getMainCamera().getPosition();
+        Matrix4f viewProjection = VeilFrameUniforms.getViewProjectionMatrix();
+        entries = 0;
+        for (int i = 0; i < count; i++) {
+            int j = i * 4;
+            DynamicEffectInstance instance = instances.get(i);
+            Vector3f center = instance.getBoundingCenter();
+            float radius = instance.getBoundingRadius(time);
+            if (center == null || !Float.isFinite(radius) || !ScreenRects.projectSphere((float) (center.x() - camera.x), (float) (center.y() - camera.y), (float) (center.z() - camera.z), radius, viewProjection, corner, bounds)) {
+                rects[j] = -1;
+                unbounded++;
+                continue;
+            }
+
+            rects[j] = clamp((int) Math.floor(bounds[0] * width / TILE_SIZE), columns);
+            rects[j + 1] = clamp((int) Math.floor(bounds[1] * height / TILE_SIZE), rows);
+            rects[j + 2] = clamp((int) Math.ceil(bounds[2] * width / TILE_SIZE), columns);
+            rects[j + 3] = clamp((int) Math.ceil(bounds[3] * height / TILE_SIZE), rows);
+
+            for (int row = rects[j + 1]; row < rects[j + 3]; row++) {
+                for (int column = rects[j]; column < rects[j + 2]; column++)
+                    counts[row * columns + column]++;
+            }
+            entries += Math.max(rects[j + 2] - rects[j], 0) * Math.max(rects[j + 3] - rects[j + 1], 0);
+        }
+
+        entries += unbounded;
+
+        int words = 2 + tiles * 2 + entries;
+        if (words > buffer.getSize())
+            buffer.generate(Math.max(words, buffer.getSize() * 2), false, GL_R32UI);
+
+        long address = MemoryUtil.memAddress(buffer.begin(words));
+        int unboundedCursor = 2 + tiles * 2;
+        MemoryUtil.memPutInt(address, unboundedCursor);
+        MemoryUtil.memPutInt(address + 4, unbounded);
+        int offset = unboundedCursor + unbounded;
+        for (int tile = 0; tile < tiles; tile++) {
+            MemoryUtil.memPutInt(address + 8 + tile * 8L, offset);
+            MemoryUtil.memPutInt(address + 8 + tile * 8L + 4, counts[tile]);
+            cursors[tile] = offset;
+            offset += counts[tile];
+        }
+        // Instances are visited in order, so every list is sorted by slot
+        for (int i = 0; i < count; i++) {
+            int j = i * 4;
+            if (rects[j] == -1) {
+                MemoryUtil.memPutInt(address + unboundedCursor++ * 4L, i);
+                continue;
+            }
+            for (int row = rects[j + 1]; row < rects[j + 3]; row++) {
+                for (int column = rects[j]; column < rects[j + 2]; column++)
+                    MemoryUtil.memPutInt(address + cursors[row * columns + column]++ * 4L, i);
+            }
+        }
+        buffer.end();
+    }
+
+    /**
+     * Bind the tile lists for the specified effect
+     * @param unit the texture unit to bind the lists to, which must not be used by a sampler of the effect or another buffer
+     */
+    public void apply(EffectInstance effect, int unit) {
+        buffer.apply(effect, BUFFER_UNIFORM, unit);
+        effect.safeGetUniform(COLUMNS_UNIFORM).set(columns);
+    }
+
+    /**
+     * @return how many instance indices were uploaded in the last frame, the sum of the instances of every list
+     */
+    public int getEntries() {
+        return entries;
+    }
+
+    public void destroy() {
+        buffer.destroy();
+    }
+
+    private static int clamp(int value, int max) {
+        return Math.max(0, Math.min(value, max));
+    }
+
+    /**
+     * Generate the GLSL reading the tile lists. <code>ivec2 veil_tileRange(vec2 fragCoord)</code> returns the first
+     * entry and the number of entries of the tile containing a pixel, <code>ivec2 veil_unboundedRange()</code> the same
+     * for the instances without bounds, which aren't in any tile, and <code>int veil_tileInstance(int entry)</code>
+     * the instance of an entry. Shaders have to loop over both ranges
+     */
+    public static String getSource() {
+        return """
+                // Generated from foundry.veil.postprocessing.InstanceTiles
+                #ifndef VEIL_INSTANCE_TILES
+                #define VEIL_INSTANCE_TILES
+
+                const int VEIL_TILE_SIZE = %d;
+
+                uniform usamplerBuffer %s;
+                uniform int %s;
+
+                ivec2 veil_unboundedRange() {
+                    return ivec2(texelFetch(%s, 0).r, texelFetch(%s, 1).r);
+                }
+
+                ivec2 veil_tileRange(vec2 fragCoord) {
+                    ivec2 tile = ivec2(fragCoord) / VEIL_TILE_SIZE;
+                    int index = 2 + (tile.y * %s + tile.x) * 2;
+                    return ivec2(texelFetch(%s, index).r, texelFetch(%s, index + 1).r);
+                }
+
+                int veil_tileInstance(int entry) {
+                    return int(texelFetch(%s, entry).r);
+                }
+
+                #endif
+                """.formatted(TILE_SIZE, BUFFER_UNIFORM, COLUMNS_UNIFORM, BUFFER_UNIFORM, BUFFER_UNIFORM, COLUMNS_UNIFORM, BUFFER_UNIFORM, BUFFER_UNIFORM, BUFFER_UNIFORM);
+    }
+}
@@ -1,89 +1,455 @@
 package foundry.veil.postprocessing;
 
 import com.mojang.blaze3d.vertex.PoseStack;
-import foundry.veil.Veil;
+import com.mojang.math.Matrix4f;
+import com.mojang.math.Vector3f;
+import foundry.veil.shader.VeilFrameUniforms;
 import net.minecraft.client.renderer.EffectInstance;
+import net.minecraft.resources.ResourceLocation;
+import net.minecraft.world.phys.Vec3;
 
 import javax.annotation.Nullable;
-import java.util.ArrayList;
-import java.util.List;
+import java.nio.FloatBuffer;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
+import static org.lwjgl.opengl.GL30.GL_R32F;
+import static org.lwjgl.opengl.GL30.GL_R32UI;
+
+/**
+ * A post processor that renders any number of fx instances, whose data is uploaded to a {@link DataBuffer} every frame.
+ * <p>
+ * The buffer starts with room for {@link #getMaxInstances()} instances and doubles whenever more are added.
+ * An optional {@link #getInstanceBudget() budget} limits the number of instances, in which case the instances with the
+ * lowest {@link DynamicEffectInstance#getPriority() priority} are removed to make room for new ones, the oldest first.
+ * They are found with a heap, so adding an instance over budget takes logarithmic time.
+ * <p>
+ * Every instance keeps its slot in the buffer until it is removed, when the last instance is moved into its slot.
+ * Only instances that changed or moved are written again, see {@link DynamicEffectInstance#tracksChanges()}.
+ * Instances with a {@link DynamicEffectInstance#setLifetime(float) lifetime} are removed when it ends, found with a heap
+ * of expiry times, so instances animated by the shader need no work at all between being added and being removed.
+ * <p>
+ * Instances with {@link DynamicEffectInstance#getBoundingCenter() bounds} outside the view frustum or further than
+ * {@link #getCullDistance()} are culled. Visible instances are kept in the first slots, so the shader only sees those
+ * and only instances whose visibility changed have to be written again. Nothing is processed when all are culled.
+ * <p>
+ * With {@link #useScreenBounds()} the post chain only processes the parts of the screen the
+ * {@link DynamicEffectInstance#getBoundingCenter() bounds} of the instances cover, and with {@link #useTiles()} the
+ * instances are binned into {@link InstanceTiles screen tiles} so shaders only loop over the instances of a pixel's tile.
+ * <p>
+ * Instances may be added from any thread. They are queued and added at the start of the next frame.
+ */
 public abstract class InstantiatedPostProcessor<I extends DynamicEffectInstance> extends PostProcessor {
-    private final List<DynamicEffectInstance> instances = new ArrayList<>(getMaxInstances());
+    private final InstanceSlotMap<I> instances = new InstanceSlotMap<>();
+    private final Queue<I> pending = new ConcurrentLinkedQueue<>();
+    private final PriorityQueue<Expiry> expiries = new PriorityQueue<>(Comparator.comparingDouble(Expiry::time));
+    // Lowest priority first, then oldest first. Entries of instances removed some other way are skipped
+    private final PriorityQueue<Eviction> evictions = new PriorityQueue<>(Comparator.comparingInt(Eviction::priority).thenComparingLong(Eviction::order));
+    private long added;
 
     private final DataBuffer dataBuffer = new DataBuffer();
+    private final InstanceDataWriter writer = new InstanceDataWriter();
+    private final ScreenRects screenRects = new ScreenRects();
+    @Nullable
+    private InstanceTiles tiles;
+    private int visibleCount;
+    // a, b, c and d of the left, right, bottom, top, near and far planes relative to the camera, normalized so d is a distance
+    private final float[] frustumPlanes = new float[24];
+    private final FloatBuffer matrix = FloatBuffer.allocate(16);
 
     /**
-     * THIS VALUE SHOULD NOT CHANGE!!!
-     * @return max fx instance count
+     * @return the number of fx instances to make room for initially, more are allocated when needed
      */
     protected abstract int getMaxInstances();
 
+    /**
+     * @return the most fx instances that may exist at once, or a value smaller than 1 for no limit
+     */
+    protected int getInstanceBudget() {
+        return 0;
+    }
+
+    /**
+     * Whether to upload the data to a <code>std430</code> shader storage buffer instead of a texture buffer.
+     * The shader has to declare a buffer block with the name passed to {@link #setDataBufferUniform(EffectInstance, String, String)}.
+     * Falls back to a texture buffer if OpenGL 4.3 isn't available, see {@link #isStorageBuffer()}
+     */
+    protected boolean useStorageBuffer() {
+        return false;
+    }
+
+    /**
+     * Whether to limit the post chain to the parts of the screen covered by the bounds of the instances, drawing every
+     * pass once per rectangle. Only possible if every pass only reads the pixel it writes, see {@link ScreenRects}
+     */
+    protected boolean useScreenBounds() {
+        return false;
+    }
+
+    /**
+     * Whether to list the instances reaching every tile of the screen every frame, see {@link InstanceTiles}.
+     * The lists are bound by {@link #setDataBufferUniform(EffectInstance, String, String)}, and the program has to declare
+     * the uniforms of <code>veil:instance_tiles</code> in its json. Tiles follow the render scale, so if the chain has
+     * {@link #getScaledTargets() scaled targets} the tiled pass must write one of them
+     */
+    protected boolean useTiles() {
+        return false;
+    }
+
+    /**
+     * @return the distance from the camera beyond which bounded instances are culled, the far plane by default
+     */
+    protected float getCullDistance() {
+        return MC.gameRenderer.getDepthFar();
+    }
+
     /**
      * THIS VALUE SHOULD NOT CHANGE!!!
-     * @return the size of data (how many floats) it takes for passing one fx instance to the shader
+     * @return the size of data (how many floats) it takes for passing one fx instance to the shader.
+     * With a storage buffer this is the std430 array stride of the instance struct, including any padding.
+     * Defaults to the stride of the {@link #getLayout() layout}
+     */
+    protected int getDataSizePerInstance() {
+        InstanceLayout layout = getLayout();
+        if (layout == null)
+            throw new IllegalStateException(this + " has neither an instance layout nor a data size");
+        return layout.getStride();
+    }
+
+    /**
+     * The layout of the data of one instance. Its GLSL is registered as an include at {@link #getLayoutInclude()} before
+     * the post chain is loaded, and the include declares the data buffer
+     * @return the layout of the instance data, or null if instances write the data themselves
+     */
+    @Nullable
+    protected InstanceLayout getLayout() {
+        return null;
+    }
+
+    /**
+     * @return the location of the generated layout include, imported as <code>&lt;namespace&gt;:instance/&lt;post chain&gt;</code> by default
      */
-    protected abstract int getDataSizePerInstance();
+    protected ResourceLocation getLayoutInclude() {
+        ResourceLocation chain = getPostChainLocation();
+        return new ResourceLocation(chain.getNamespace(), "shaders/include/instance/" + chain.getPath() + ".glsl");
+    }
 
     @Override
     public void init() {
+        InstanceLayout layout = getLayout();
+        if (layout != null)
+            layout.register(getLayoutInclude(), useStorageBuffer() && DataBuffer.isStorageSupported());
+
         super.init();
 
-        dataBuffer.generate((long) getMaxInstances() * getDataSizePerInstance());
+        generateDataBuffer(Math.max(getMaxInstances(), instances.size()));
+    }
+
+    @Override
+    public void unload() {
+        super.unload();
+        // Instances are kept, init() generates the buffer again with room for all of them
+        dataBuffer.destroy();
+        if (tiles != null) {
+            tiles.destroy();
+            tiles = null;
+        }
+    }
+
+    private void generateDataBuffer(long capacity) {
+        for (int i = 0; i < instances.size(); i++)
+            instances.get(i).markDirty();
+        dataBuffer.generate(Math.max(capacity, 1) * getDataSizePerInstance(), useStorageBuffer(), getLayout() != null ? GL_R32UI : GL_R32F);
     }
 
     /**
-     * Add an fx instance
-     * @return the instance added or null if the amount of instances has reached max
+     * Add an fx instance at the start of the next frame. May be called from any thread.
+     * If the budget is reached by then, the instance with the lowest priority is removed to make room,
+     * or this instance if all others have a higher priority
+     * @return the instance, which has a {@link DynamicEffectInstance#getHandle() handle} once it has been added
      */
-    @Nullable
     public I addFxInstance(I instance) {
-        if (instances.size() >= getMaxInstances()) {
-            Veil.LOGGER.warn("Failed to add fx instance to " + this + ": reached max instance count of " + getMaxInstances());
-            return null;
-        }
-        instances.add(instance);
+        pending.add(instance);
         setActive(true);
-        Veil.LOGGER.warn("Added fx instance to " + this + ": " + instance);
         return instance;
     }
 
+    /**
+     * @return the instance with the specified handle, or null if it has been removed
+     */
+    @Nullable
+    public I getFxInstance(long handle) {
+        return instances.get(handle);
+    }
+
+    /**
+     * @return the number of instances, not counting instances added since the start of the frame
+     */
+    public int getInstanceCount() {
+        return instances.size();
+    }
+
+    /**
+     * @return the number of instances that weren't culled in the last frame, which are in the first slots
+     */
+    public int getVisibleInstanceCount() {
+        return visibleCount;
+    }
+
+    private void addPending() {
+        int budget = getInstanceBudget();
+        I instance;
+        while ((instance = pending.poll()) != null) {
+            if (instance.isRemoved())
+                continue;
+
+            int priority = instance.getPriority();
+            if (budget > 0 && instances.size() >= budget) {
+                Eviction lowest = peekEviction();
+                if (priority < lowest.priority()) {
+                    instance.remove();
+                    continue;
+                }
+
+                evictions.poll();
+                instances.removeAt(instances.indexOf(lowest.handle())).remove();
+            }
+            instance.spawnTime = (float) time;
+            long handle = instances.add(instance);
+            if (Float.isFinite(instance.getLifetime()))
+                expiries.add(new Expiry(instance.spawnTime + instance.getLifetime(), handle));
+            evictions.add(new Eviction(priority, added++, handle));
+            // Stale entries are only polled once they reach the top, so drop them all once they are the majority
+            if (evictions.size() > instances.size() * 2)
+                evictions.removeIf(eviction -> !instances.contains(eviction.handle()));
+        }
+    }
+
+    /**
+     * @return the instance to remove first, there must be at least one instance
+     */
+    private Eviction peekEviction() {
+        while (!instances.contains(evictions.peek().handle()))
+            evictions.poll();
+        return evictions.peek();
+    }
+
+    private void removeExpired() {
+        while (!expiries.isEmpty() && expiries.peek().time() <= time) {
+            // Instances removed in the meantime no longer resolve
+            I instance = instances.get(expiries.poll().handle());
+            if (instance != null)
+                instance.remove();
+        }
+    }
+
+    private void removeRemoved() {
+        for (int i = instances.size() - 1; i >= 0; i--) {
+            if (instances.get(i).isRemoved())
+                instances.removeAt(i);
+        }
+    }
+
     @Override
     public void beforeProcess(PoseStack viewModelStack) {
+        // Dead instances must not count against the budget of the pending ones
+        removeExpired();
+        removeRemoved();
+        addPending();
+
         for (int i=instances.size()-1; i>=0; i--) {
             DynamicEffectInstance instance = instances.get(i);
-            instance.update(MC.getDeltaFrameTime());
+            if (instance.needsUpdate())
+                instance.update(MC.getDeltaFrameTime());
             if (instance.isRemoved()) {
-                instances.remove(i);
+                instances.removeAt(i);
             }
         }
 
         if (instances.isEmpty()) {
-            setActive(false);
+            // The time starts over once the processor is inactive
+            expiries.clear();
+            evictions.clear();
+            visibleCount = 0;
+            if (pending.isEmpty()) {
+                setActive(false);
+                // An instance may have been added between the check and deactivating
+                if (!pending.isEmpty())
+                    setActive(true);
+            }
+            return;
+        }
+
+        cullInstances();
+        if (visibleCount == 0)
             return;
+
+        if (useScreenBounds())
+            updateScreenRects();
+
+        int size = getDataSizePerInstance();
+        if ((long) instances.size() * size > dataBuffer.getSize()) {
+            long capacity = Math.max(dataBuffer.getSize() / size, 1);
+            while (capacity < instances.size())
+                capacity *= 2;
+            generateDataBuffer(capacity);
         }
 
-        float[] data = new float[instances.size() * getDataSizePerInstance()];
-        for (int ins=0; ins<instances.size(); ins++) {
+        // Written straight into the buffer the shader reads from, see DataBuffer
+        int copies = dataBuffer.getCopies();
+        writer.begin(dataBuffer.begin(visibleCount * size), size);
+        for (int ins=0; ins<visibleCount; ins++) {
             DynamicEffectInstance instance = instances.get(ins);
-            int offset = ins * getDataSizePerInstance();
-            instance.writeDataToBuffer((index, d) -> {
-                if (index >= getDataSizePerInstance() || index < 0)
-                    throw new IndexOutOfBoundsException(index);
-                data[offset + index] = d;
-            });
+            if (instance.dirty || !instance.tracksChanges()) {
+                instance.dirty = false;
+                instance.uploads = copies;
+            }
+            if (instance.uploads <= 0)
+                continue;
+
+            instance.uploads--;
+            writer.beginInstance(ins);
+            instance.writeData(writer);
+            writer.endInstance();
+            dataBuffer.markDirty(ins * size, size);
+        }
+        dataBuffer.endDirty();
+
+        if (useTiles()) {
+            if (tiles == null)
+                tiles = new InstanceTiles();
+            tiles.update(instances, visibleCount, (float) time, getScaledSize(MC.getMainRenderTarget().width), getScaledSize(MC.getMainRenderTarget().height));
         }
+    }
+
+    private void cullInstances() {
+        Vec3 camera = MC.gameRenderer.getMainCamera().getPosition();
+        updateFrustumPlanes();
+        float cullDistance = getCullDistance();
 
-//        float[] data = new float[getMaxInstances() * getDataSizePerInstance()];
-//        for (int i=0; i<getMaxInstances() * getDataSizePerInstance(); i++) {
-//            data[i] = (float) (time % 1F);
-//        }
+        // Move visible instances from the end into the slots of culled instances at the start, so only those have to be written
+        int first = 0;
+        int last = instances.size() - 1;
+        while (true) {
+            while (first <= last && isVisible(instances.get(first), camera, cullDistance))
+                first++;
+            while (first <= last && !isVisible(instances.get(last), camera, cullDistance))
+                last--;
+            if (first >= last)
+                break;
+            instances.swap(first++, last--);
+        }
+        visibleCount = first;
 
-        dataBuffer.upload(data);
+        // Culled instances miss the writes to some copies of the buffer, so they are written in full once visible again
+        for (int i = visibleCount; i < instances.size(); i++) {
+            DynamicEffectInstance instance = instances.get(i);
+            instance.dirty = true;
+            instance.uploads = 0;
+        }
+    }
+
+    private void updateFrustumPlanes() {
+        // Column major, so the element in a row and column is at column * 4 + row
+        VeilFrameUniforms.getViewProjectionMatrix().store(matrix);
+        for (int i = 0; i < 6; i++) {
+            int row = i / 2;
+            float sign = i % 2 == 0 ? 1F : -1F;
+            float length = 0F;
+            for (int j = 0; j < 4; j++) {
+                frustumPlanes[i * 4 + j] = matrix.get(j * 4 + 3) + sign * matrix.get(j * 4 + row);
+                if (j < 3)
+                    length += frustumPlanes[i * 4 + j] * frustumPlanes[i * 4 + j];
+            }
+            length = (float) Math.sqrt(length);
+            for (int j = 0; j < 4; j++)
+                frustumPlanes[i * 4 + j] /= length;
+        }
+    }
+
+    private boolean isVisible(DynamicEffectInstance instance, Vec3 camera, float cullDistance) {
+        Vector3f center = instance.getBoundingCenter();
+        float radius = instance.getBoundingRadius((float) time);
+        if (center == null || !Float.isFinite(radius))
+            return true;
+
+        double distance = Math.sqrt(camera.distanceToSqr(center.x(), center.y(), center.z()));
+        if (distance - radius > cullDistance)
+            return false;
+
+        float x = (float) (center.x() - camera.x);
+        float y = (float) (center.y() - camera.y);
+        float z = (float) (center.z() - camera.z);
+        for (int i = 0; i < 24; i += 4) {
+            if (frustumPlanes[i] * x + frustumPlanes[i + 1] * y + frustumPlanes[i + 2] * z + frustumPlanes[i + 3] < -radius)
+                return false;
+        }
+        return true;
+    }
+
+    @Override
+    public boolean shouldProcess() {
+        return visibleCount > 0;
+    }
+
+    private void updateScreenRects() {
+        screenRects.clear();
+        Vec3 camera = MC.gameRenderer.getMainCamera().getPosition();
+        Matrix4f viewProjection = VeilFrameUniforms.getViewProjectionMatrix();
+        for (int i = 0; i < visibleCount; i++) {
+            DynamicEffectInstance instance = instances.get(i);
+            Vector3f center = instance.getBoundingCenter();
+            float radius = instance.getBoundingRadius((float) time);
+            if (center == null || !Float.isFinite(radius)) {
+                screenRects.addFullScreen();
+                return;
+            }
+            screenRects.addSphere((float) (center.x() - camera.x), (float) (center.y() - camera.y), (float) (center.z() - camera.z), radius, viewProjection);
+        }
+    }
+
+    @Override
+    protected ScreenRects getScreenRects() {
+        return useScreenBounds() ? screenRects : null;
+    }
+
+    /**
+     * @return how many fx instances fit in the buffer before it has to grow
+     */
+    public int getInstanceCapacity() {
+        return (int) (dataBuffer.getSize() / getDataSizePerInstance());
+    }
+
+    /**
+     * @return how many bytes of instance data were written in the last frame
+     */
+    public long getUploadedBytes() {
+        return dataBuffer.getUploadedBytes();
+    }
+
+    /**
+     * @return whether the data is in a shader storage buffer, see {@link #useStorageBuffer()}
+     */
+    public boolean isStorageBuffer() {
+        return dataBuffer.isStorage();
     }
 
     protected void setDataBufferUniform(EffectInstance effectInstance, String bufferName, String countName) {
-        dataBuffer.apply(effectInstance, bufferName);
-        effectInstance.safeGetUniform(countName).set(instances.size());
+        // Texture units after the samplers of the effect, the data buffer only takes one if it's a texture buffer
+        int unit = effectInstance.samplerMap.size();
+        dataBuffer.apply(effectInstance, bufferName, unit);
+        if (!dataBuffer.isStorage())
+            unit++;
+        effectInstance.safeGetUniform(countName).set(visibleCount);
+        if (tiles != null)
+            tiles.apply(effectInstance, unit);
+    }
+
+    private record Expiry(float time, long handle) {
+    }
+
+    private record Eviction(int priority, long order, long handle) {
     }
 }
@@ -1,39 +1,119 @@
 package foundry.veil.postprocessing;
 
+import com.mojang.blaze3d.pipeline.RenderTarget;
+import com.mojang.blaze3d.pipeline.TextureTarget;
+import com.mojang.blaze3d.platform.GlStateManager;
+import com.mojang.blaze3d.systems.RenderSystem;
 import com.mojang.blaze3d.vertex.PoseStack;
 import foundry.veil.Veil;
+import net.minecraft.client.Minecraft;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
 
+import static org.lwjgl.opengl.GL30.GL_DRAW_FRAMEBUFFER;
+
+/**
+ * Runs all registered {@link PostProcessor}s every frame.
+ * <p>
+ * Processors declare the targets they read and write with {@link PostProcessor#getReads()} and {@link PostProcessor#getWrites()}.
+ * They are ordered so that every processor that only writes a target runs before the processors that read it,
+ * processors that read and write the same target run in the order they were added, and processors that only read
+ * a target run after it has been modified. Processors that are inactive or only write targets nothing reads are skipped.
+ * <p>
+ * The depth buffer is copied once per frame into a single snapshot, which every post chain uses as its
+ * {@link #DEPTH_TARGET} instead of keeping its own copy.
+ */
 public class PostProcessingHandler {
+    /**
+     * The main framebuffer. Anything written to it is always used
+     */
+    public static final String MAIN_TARGET = "minecraft:main";
+    /**
+     * The copy of the depth buffer made before translucent geometry is rendered. Shared by all post chains, see {@link #getDepthSnapshot()}
+     */
+    public static final String DEPTH_TARGET = "DepthMain";
+
     private static final List<PostProcessor> instances = new ArrayList<>();
+    private static final List<PostProcessor> schedule = new ArrayList<>();
+    private static final Set<String> liveTargets = new HashSet<>();
+    private static final List<PostProcessor> frame = new ArrayList<>();
+    private static boolean scheduleDirty = true;
 
+    private static TextureTarget depthSnapshot;
     private static boolean copiedDepth = false;
 
     /**
      * Add a {@link PostProcessor} instance to the handler.
-     * IMPORTANT: PostProcessors must be added in the correct order (e.g. bloom must be added after the depth buffer is copied)
+     * Processors are ordered by the targets they read and write, so the order they are added in only matters between
+     * processors that read and write the same target.
      */
     public static void addInstance(PostProcessor instance) {
         instances.add(instance);
+        scheduleDirty = true;
+    }
+
+    /**
+     * Mark the schedule as outdated, for example when a processor changes the targets it uses
+     */
+    public static void invalidateSchedule() {
+        scheduleDirty = true;
     }
 
+    /**
+     * Get the depth snapshot used as {@link #DEPTH_TARGET} by every post chain, creating it if needed
+     */
+    public static TextureTarget getDepthSnapshot() {
+        RenderSystem.assertOnRenderThread();
+        if (depthSnapshot == null) {
+            RenderTarget main = Minecraft.getInstance().getMainRenderTarget();
+            depthSnapshot = new TextureTarget(main.width, main.height, true, Minecraft.ON_OSX);
+        }
+        return depthSnapshot;
+    }
+
+    /**
+     * Copy the depth buffer into the snapshot, at most once per frame. The snapshot is created the first time anything is active
+     */
     public static void copyDepth(){
         if(copiedDepth) return;
-        instances.forEach(PostProcessor::copyDepthBuffer);
         copiedDepth = true;
+
+        boolean active = false;
+        for (PostProcessor instance : instances) {
+            if (instance.isActive()) {
+                active = true;
+                break;
+            }
+        }
+        if (!active) return;
+
+        // Created here rather than by the first chain that loads, which only happens after this copy
+        RenderTarget main = Minecraft.getInstance().getMainRenderTarget();
+        getDepthSnapshot().copyDepthFrom(main);
+
+        // rebind the main framebuffer so that we don't mess up other postfx
+        GlStateManager._glBindFramebuffer(GL_DRAW_FRAMEBUFFER, main.frameBufferId);
     }
 
     public static void resize(int width, int height){
+        if (depthSnapshot != null) {
+            RenderTargetPool.resize(depthSnapshot, width, height);
+        }
         instances.forEach(instance -> instance.resize(width, height));
     }
 
     public static void onLevelRenderLast(PoseStack stack){
         copyDepth();
         PostProcessor.viewModelStack = stack;
-        instances.forEach(PostProcessor::applyPostProcess);
-        copiedDepth = true;
+        getFrame().forEach(PostProcessor::applyPostProcess);
+        copiedDepth = false;
     }
 
     public static void stopEffect(PostProcessor instance){
@@ -43,4 +123,127 @@ public class PostProcessingHandler {
     public static List<PostProcessor> getInstances() {
         return instances;
     }
+
+    /**
+     * @return all processors in the order they are run, including inactive ones
+     */
+    public static List<PostProcessor> getSchedule() {
+        if (scheduleDirty) {
+            buildSchedule();
+            scheduleDirty = false;
+        }
+        return schedule;
+    }
+
+    /**
+     * Find the processors that need to run this frame. Walks the schedule backwards from the main target
+     * and keeps every active processor that writes a target read by a later processor.
+     */
+    private static List<PostProcessor> getFrame() {
+        List<PostProcessor> schedule = getSchedule();
+        frame.clear();
+        liveTargets.clear();
+        liveTargets.add(MAIN_TARGET);
+        for (int i = schedule.size() - 1; i >= 0; i--) {
+            PostProcessor processor = schedule.get(i);
+            if (!processor.isActive()) {
+                continue;
+            }
+
+            boolean used = false;
+            for (String target : processor.getWrites()) {
+                if (liveTargets.contains(target)) {
+                    used = true;
+                    break;
+                }
+            }
+            if (used) {
+                frame.add(processor);
+                liveTargets.addAll(processor.getReads());
+            }
+        }
+
+        // Collected backwards, so flip to get the run order
+        for (int i = 0, j = frame.size() - 1; i < j; i++, j--) {
+            frame.set(i, frame.set(j, frame.get(i)));
+        }
+        return frame;
+    }
+
+    private static void buildSchedule() {
+        int count = instances.size();
+        List<Set<Integer>> edges = new ArrayList<>(count);
+        int[] dependencies = new int[count];
+        for (int i = 0; i < count; i++) {
+            edges.add(new HashSet<>());
+        }
+
+        // Group processors by how they use each target
+        Map<String, List<Integer>> producers = new HashMap<>();
+        Map<String, List<Integer>> modifiers = new HashMap<>();
+        Map<String, List<Integer>> consumers = new HashMap<>();
+        for (int i = 0; i < count; i++) {
+            PostProcessor processor = instances.get(i);
+            Collection<String> reads = processor.getReads();
+            Collection<String> writes = processor.getWrites();
+            for (String target : writes) {
+                (reads.contains(target) ? modifiers : producers).computeIfAbsent(target, __ -> new ArrayList<>()).add(i);
+            }
+            for (String target : reads) {
+                if (!writes.contains(target)) {
+                    consumers.computeIfAbsent(target, __ -> new ArrayList<>()).add(i);
+                }
+            }
+        }
+
+        // Producers -> modifiers in the order they were added -> consumers
+        Set<String> targets = new HashSet<>(producers.keySet());
+        targets.addAll(modifiers.keySet());
+        for (String target : targets) {
+            List<Integer> producing = producers.getOrDefault(target, List.of());
+            List<Integer> modifying = modifiers.getOrDefault(target, List.of());
+            List<Integer> consuming = consumers.getOrDefault(target, List.of());
+            for (int producer : producing) {
+                modifying.forEach(modifier -> addEdge(edges, dependencies, producer, modifier));
+                consuming.forEach(consumer -> addEdge(edges, dependencies, producer, consumer));
+            }
+            for (int i = 1; i < modifying.size(); i++) {
+                addEdge(edges, dependencies, modifying.get(i - 1), modifying.get(i));
+            }
+            if (!modifying.isEmpty()) {
+                int last = modifying.get(modifying.size() - 1);
+                consuming.forEach(consumer -> addEdge(edges, dependencies, last, consumer));
+            }
+        }
+
+        // Kahn's algorithm, preferring the processor that was added first when several are ready
+        schedule.clear();
+        PriorityQueue<Integer> ready = new PriorityQueue<>();
+        for (int i = 0; i < count; i++) {
+            if (dependencies[i] == 0) {
+                ready.add(i);
+            }
+        }
+        while (!ready.isEmpty()) {
+            int next = ready.poll();
+            schedule.add(instances.get(next));
+            for (int dependent : edges.get(next)) {
+                if (--dependencies[dependent] == 0) {
+                    ready.add(dependent);
+                }
+            }
+        }
+
+        if (schedule.size() != count) {
+            Veil.LOGGER.error("Post processors have cyclic target dependencies, falling back to the order they were added in");
+            schedule.clear();
+            schedule.addAll(instances);
+        }
+    }
+
+    private static void addEdge(List<Set<Integer>> edges, int[] dependencies, int from, int to) {
+        if (from != to && edges.get(from).add(to)) {
+            dependencies[to]++;
+        }
+    }
 }
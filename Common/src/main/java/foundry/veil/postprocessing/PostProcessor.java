@@ -5,12 +5,14 @@ import com.google.gson.JsonParseException;
 import com.mojang.blaze3d.pipeline.RenderTarget;
 import com.mojang.blaze3d.platform.GlStateManager;
 import com.mojang.blaze3d.shaders.Uniform;
-import com.mojang.blaze3d.systems.RenderSystem;
 import com.mojang.blaze3d.vertex.PoseStack;
 import com.mojang.datafixers.util.Pair;
-import com.mojang.math.Matrix4f;
 import com.mojang.math.Vector3f;
 import foundry.veil.Veil;
+import foundry.veil.mixin.client.PostChainAccessor;
+import foundry.veil.mixin.client.PostPassAccessor;
+import foundry.veil.shader.ShaderStatistics;
+import foundry.veil.shader.VeilFrameUniforms;
 import net.minecraft.client.Minecraft;
 import net.minecraft.client.renderer.EffectInstance;
 import net.minecraft.client.renderer.GameRenderer;
@@ -18,10 +20,11 @@ import net.minecraft.client.renderer.PostChain;
 import net.minecraft.client.renderer.PostPass;
 import net.minecraft.resources.ResourceLocation;
 
+import javax.annotation.Nullable;
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Collection;
+import java.util.List;
 import java.util.function.Consumer;
 
 import static org.lwjgl.opengl.GL30.GL_DRAW_FRAMEBUFFER;
@@ -29,27 +32,33 @@ import static org.lwjgl.opengl.GL30.GL_DRAW_FRAMEBUFFER;
 public abstract class PostProcessor {
     protected static final Minecraft MC = Minecraft.getInstance();
 
+    /**
+     * Set on programs that declare them as plain uniforms. Programs should import <code>veil:frame_uniforms</code>
+     * instead, which is only uploaded once per frame, see {@link VeilFrameUniforms}
+     */
     public static final Collection<Pair<String, Consumer<Uniform>>> COMMON_UNIFORMS = Lists.newArrayList(
             Pair.of("CameraPos", u -> u.set(new Vector3f(MC.gameRenderer.getMainCamera().getPosition()))),
             Pair.of("LookVector", u -> u.set(MC.gameRenderer.getMainCamera().getLookVector())),
             Pair.of("UpVector", u -> u.set(MC.gameRenderer.getMainCamera().getUpVector())),
             Pair.of("LeftVector", u -> u.set(MC.gameRenderer.getMainCamera().getLeftVector())),
-            Pair.of("InvViewMat", u -> {
-                Matrix4f invertedViewMatrix = PostProcessor.viewModelStack.last().pose().copy();
-                invertedViewMatrix.invert();
-                u.set(invertedViewMatrix);
-            }),
-            Pair.of("InvProjMat", u -> {
-                Matrix4f invertedProjectionMatrix = RenderSystem.getProjectionMatrix().copy();
-                invertedProjectionMatrix.invert();
-                u.set(invertedProjectionMatrix);
-            }),
+            Pair.of("InvViewMat", u -> u.set(VeilFrameUniforms.getInvViewMatrix())),
+            Pair.of("InvProjMat", u -> u.set(VeilFrameUniforms.getInvProjectionMatrix())),
             Pair.of("NearPlaneDistance", u -> u.set(GameRenderer.PROJECTION_Z_NEAR)),
             Pair.of("FarPlaneDistance", u -> u.set(MC.gameRenderer.getDepthFar())),
-            Pair.of("Fov", u -> u.set((float) Math.toRadians(MC.gameRenderer.getFov(MC.gameRenderer.getMainCamera(), MC.getFrameTime(), true)))),
+            Pair.of("Fov", u -> u.set(VeilFrameUniforms.getFov())),
             Pair.of("AspectRatio", u -> u.set((float) MC.getWindow().getWidth() / (float) MC.getWindow().getHeight()))
     );
 
+    /**
+     * How long a chain using dynamic resolution may take on the GPU every frame, in milliseconds
+     */
+    public static final float DEFAULT_GPU_BUDGET = Float.parseFloat(System.getProperty("veil.postGpuBudget", "1.5"));
+
+    /**
+     * The program of the passes that upsample {@link #getScaledTargets() scaled targets}
+     */
+    public static final String UPSAMPLE_PROGRAM = "veil:bilateral_upsample";
+
     /**
      * Updated every frame before calling applyPostProcess() by PostProcessingHandler
      */
@@ -58,24 +67,94 @@ public abstract class PostProcessor {
     private boolean initialized = false;
     protected PostChain postChain;
     protected EffectInstance[] effects;
-    private RenderTarget tempDepthBuffer;
     private Collection<Pair<Uniform, Consumer<Uniform>>> defaultUniforms;
 
-    private boolean isActive = true;
+    private volatile boolean isActive = true;
 
     protected double time;
 
+    @Nullable
+    private RenderScaleController scaleController;
+    private float renderScale = 1F;
+    // Every pass of the chain as loaded. The upsample passes are left out while the scale is 1
+    private List<PostPass> passes = List.of();
+    private final List<Upsample> upsamples = new ArrayList<>();
+    private boolean upsampling;
+
     /**
      * Example: "veil:bar" points to veil:shaders/post/foo.json
      */
     public abstract ResourceLocation getPostChainLocation();
 
+    /**
+     * The targets this processor reads from, used by {@link PostProcessingHandler} to order processors.
+     * Example: {@link PostProcessingHandler#MAIN_TARGET}, {@link PostProcessingHandler#DEPTH_TARGET} or a target from {@link foundry.veil.shader.RenderTargetRegistry}
+     */
+    public Collection<String> getReads() {
+        return List.of(PostProcessingHandler.MAIN_TARGET);
+    }
+
+    /**
+     * The targets this processor writes to. The processor is skipped if nothing reads any of them afterwards,
+     * except for {@link PostProcessingHandler#MAIN_TARGET} which is always used
+     */
+    public Collection<String> getWrites() {
+        return List.of(PostProcessingHandler.MAIN_TARGET);
+    }
+
+    /**
+     * The targets of the post chain that are only used while it is processed. Their memory is shared with other post chains,
+     * so they must be written before they are read every frame. None by default
+     */
+    public Collection<String> getTransientTargets() {
+        return List.of();
+    }
+
+    /**
+     * The targets of the post chain rendered at {@link #getRenderScale()} instead of the size of the screen. They must not be
+     * transient, since their size is not shared with other chains. Passes writing to them should be followed by a
+     * {@link #UPSAMPLE_PROGRAM} pass reading them along with the target they were computed from.
+     * <p>
+     * While the scale is 1 the upsample passes are skipped, the pass before writes to the target of the upsample pass
+     * directly and the scaled target shrinks to a single pixel. Nothing but the upsample pass may read a scaled target
+     */
+    public Collection<String> getScaledTargets() {
+        return List.of();
+    }
+
+    /**
+     * The smallest render scale of {@link #getScaledTargets()}, between 0.5 and 1. The scale follows the time the chain takes on the
+     * GPU to stay within {@link #getGpuBudget()}, unless this is 1
+     */
+    protected float getMinRenderScale() {
+        return 1F;
+    }
+
+    /**
+     * @return how long the post chain may take on the GPU every frame in milliseconds, see {@link #getMinRenderScale()}
+     */
+    protected float getGpuBudget() {
+        return DEFAULT_GPU_BUDGET;
+    }
+
+    /**
+     * @return the scale of {@link #getScaledTargets()} relative to the screen
+     */
+    public float getRenderScale() {
+        return renderScale;
+    }
+
+    /**
+     * @return the size of a scaled target for a screen of the specified size
+     */
+    protected int getScaledSize(int size) {
+        return Math.max(1, (int) (size * renderScale));
+    }
+
     public void init() {
         loadPostChain();
 
         if (postChain != null) {
-            tempDepthBuffer = postChain.getTempTarget("DepthMain");
-
             defaultUniforms = new ArrayList<>();
             for (EffectInstance e : effects) {
                 for (Pair<String, Consumer<Uniform>> pair : COMMON_UNIFORMS) {
@@ -84,6 +163,10 @@ public abstract class PostProcessor {
                         defaultUniforms.add(Pair.of(u, pair.getSecond()));
                     }
                 }
+                Uniform timeUniform = e.getUniform("time");
+                if (timeUniform != null) {
+                    defaultUniforms.add(Pair.of(timeUniform, u -> u.set((float) time)));
+                }
             }
         }
 
@@ -95,48 +178,155 @@ public abstract class PostProcessor {
      */
     public final void loadPostChain() {
         if (postChain != null) {
-            postChain.close();
-            postChain = null;
+            closePostChain();
         }
 
+        ResourceLocation file = getPostChainLocation();
+        file = new ResourceLocation(file.getNamespace(), "shaders/post/" + file.getPath() + ".json");
+        ShaderStatistics.Timer timer = ShaderStatistics.start(file.toString(), ShaderStatistics.Phase.LOAD);
+        RenderTargetPool.begin(getTransientTargets());
         try {
-            ResourceLocation file = getPostChainLocation();
-            file = new ResourceLocation(file.getNamespace(), "shaders/post/" + file.getPath() + ".json");
             postChain = new PostChain(
                     MC.getTextureManager(),
                     MC.getResourceManager(),
                     MC.getMainRenderTarget(),
                     file
             );
+            // Sized by resizeScaledTargets only, so they aren't allocated at full size first on every resize
+            List<RenderTarget> fullSizedTargets = ((PostChainAccessor) postChain).getFullSizedTargets();
+            for (String name : getScaledTargets())
+                fullSizedTargets.remove(postChain.getTempTarget(name));
+            passes = new ArrayList<>(postChain.passes);
+            findUpsamples();
+            setUpsampling(renderScale < 1F);
+
             postChain.resize(MC.getWindow().getWidth(), MC.getWindow().getHeight());
-            effects = postChain.passes.stream().map(PostPass::getEffect).toArray(EffectInstance[]::new);
+            resizeScaledTargets(MC.getWindow().getWidth(), MC.getWindow().getHeight());
+            effects = passes.stream().map(PostPass::getEffect).toArray(EffectInstance[]::new);
         } catch (IOException | JsonParseException e) {
             Veil.LOGGER.error("Failed to load post-processing shader: ", e);
+        } finally {
+            RenderTargetPool.end();
         }
+        timer.end();
+        RenderTargetPool.logStatistics();
     }
 
-    public final void copyDepthBuffer() {
-        if (isActive) {
-            if (postChain == null || tempDepthBuffer == null) return;
-
-            tempDepthBuffer.copyDepthFrom(MC.getMainRenderTarget());
-
-            // rebind the main framebuffer so that we don't mess up other postfx
-            GlStateManager._glBindFramebuffer(GL_DRAW_FRAMEBUFFER, MC.getMainRenderTarget().frameBufferId);
+    /**
+     * Free the post chain. It is loaded again the next time this processor is applied
+     */
+    public void unload() {
+        if (postChain != null) {
+            closePostChain();
+        }
+        if (scaleController != null) {
+            scaleController.destroy();
+            scaleController = null;
         }
+        renderScale = 1F;
+        initialized = false;
+    }
+
+    /**
+     * @return the effects of the loaded post chain, or an empty array if it isn't loaded
+     */
+    public final EffectInstance[] getEffects() {
+        return postChain != null ? effects : new EffectInstance[0];
     }
 
     public void resize(int width, int height) {
         if (postChain != null) {
             postChain.resize(width, height);
-            if (tempDepthBuffer != null)
-                tempDepthBuffer.resize(width, height, Minecraft.ON_OSX);
+            resizeScaledTargets(width, height);
         }
     }
 
-    private void applyDefaultUniforms() {
-        Arrays.stream(effects).forEach(e -> e.safeGetUniform("time").set((float) time));
+    private void closePostChain() {
+        // The chain only closes the effects of the passes it still has
+        setUpsampling(true);
+        postChain.close();
+        postChain = null;
+        passes = List.of();
+        upsamples.clear();
+    }
+
+    private void resizeScaledTargets(int width, int height) {
+        for (String name : getScaledTargets()) {
+            RenderTarget target = postChain.getTempTarget(name);
+            if (target == null || RenderTargetPool.isPooled(target)) {
+                Veil.LOGGER.warn("Can't scale target '{}' of post chain {}, it must be declared by the chain and not be transient", name, getPostChainLocation());
+                continue;
+            }
+            if (!upsampling && isUpsampled(target))
+                RenderTargetPool.resize(target, 1, 1);
+            else
+                RenderTargetPool.resize(target, getScaledSize(width), getScaledSize(height));
+        }
+    }
+
+    private void findUpsamples() {
+        upsamples.clear();
+        upsampling = true;
+        for (int i = 0; i < passes.size(); i++) {
+            PostPass upsample = passes.get(i);
+            if (!UPSAMPLE_PROGRAM.equals(upsample.getEffect().getName()) || !isScaled(upsample.inTarget))
+                continue;
+            for (int j = i - 1; j >= 0; j--) {
+                if (passes.get(j).outTarget == upsample.inTarget) {
+                    upsamples.add(new Upsample(passes.get(j), upsample, upsample.inTarget));
+                    break;
+                }
+            }
+        }
+    }
+
+    private boolean isScaled(RenderTarget target) {
+        for (String name : getScaledTargets()) {
+            if (postChain.getTempTarget(name) == target)
+                return true;
+        }
+        return false;
+    }
+
+    private boolean isUpsampled(RenderTarget target) {
+        for (Upsample upsample : upsamples) {
+            if (upsample.scaled() == target)
+                return true;
+        }
+        return false;
+    }
 
+    /**
+     * Run the upsample passes, or skip them and write their target directly
+     */
+    private void setUpsampling(boolean upsampling) {
+        if (this.upsampling == upsampling || upsamples.isEmpty())
+            return;
+
+        this.upsampling = upsampling;
+        postChain.passes.clear();
+        postChain.passes.addAll(passes);
+        for (Upsample upsample : upsamples) {
+            ((PostPassAccessor) upsample.source()).setOutTarget(upsampling ? upsample.scaled() : upsample.upsample().outTarget);
+            if (!upsampling)
+                postChain.passes.remove(upsample.upsample());
+        }
+    }
+
+    private void updateRenderScale() {
+        if (getMinRenderScale() >= 1F || getScaledTargets().isEmpty() || !RenderScaleController.isSupported())
+            return;
+        if (scaleController == null)
+            scaleController = new RenderScaleController(Math.max(getMinRenderScale(), 0.5F), 1F);
+
+        if (scaleController.update((long) (getGpuBudget() * 1.0E6F))) {
+            renderScale = scaleController.getScale();
+            setUpsampling(renderScale < 1F);
+            resizeScaledTargets(MC.getMainRenderTarget().width, MC.getMainRenderTarget().height);
+        }
+    }
+
+    private void applyDefaultUniforms() {
         defaultUniforms.forEach(pair -> pair.getSecond().accept(pair.getFirst()));
     }
 
@@ -147,12 +337,22 @@ public abstract class PostProcessor {
 
             if (postChain != null) {
                 time += MC.getDeltaFrameTime() / 20.0;
+                updateRenderScale();
 
                 applyDefaultUniforms();
 
                 beforeProcess(viewModelStack);
-                if (!isActive) return;
-                postChain.process(MC.getFrameTime());
+                if (!isActive || !shouldProcess()) return;
+                ScreenRects.setActive(getScreenRects());
+                if (scaleController != null)
+                    scaleController.begin();
+                try {
+                    postChain.process(MC.getFrameTime());
+                } finally {
+                    if (scaleController != null)
+                        scaleController.end();
+                    ScreenRects.setActive(null);
+                }
 
                 GlStateManager._glBindFramebuffer(GL_DRAW_FRAMEBUFFER, MC.getMainRenderTarget().frameBufferId);
                 afterProcess();
@@ -165,6 +365,23 @@ public abstract class PostProcessor {
      */
     public abstract void beforeProcess(PoseStack viewModelStack);
 
+    /**
+     * Called after {@link #beforeProcess(PoseStack)}. Processors that have nothing to draw this frame can skip the
+     * post chain, and {@link #afterProcess()}, by returning false
+     */
+    public boolean shouldProcess() {
+        return true;
+    }
+
+    /**
+     * The parts of the screen the post chain is limited to this frame, see {@link ScreenRects} for what the passes may do
+     * @return the rectangles, or null to process the whole screen
+     */
+    @Nullable
+    protected ScreenRects getScreenRects() {
+        return null;
+    }
+
     /**
      * Unbind textures
      */
@@ -180,4 +397,10 @@ public abstract class PostProcessor {
     public final boolean isActive() {
         return isActive;
     }
+
+    /**
+     * A pass writing a scaled target and the upsample pass reading it
+     */
+    private record Upsample(PostPass source, PostPass upsample, RenderTarget scaled) {
+    }
 }
@@ -0,0 +1,136 @@
+package foundry.veil.postprocessing;
+
+import com.mojang.blaze3d.systems.RenderSystem;
+import net.minecraft.util.Mth;
+import org.lwjgl.opengl.GL;
+import org.lwjgl.opengl.GLCapabilities;
+
+import static org.lwjgl.opengl.GL33C.*;
+
+/**
+ * Picks the render scale of a post chain from how long the GPU took to process it, see {@link PostProcessor#getMinRenderScale()}.
+ * <p>
+ * Every frame is measured with a timer query. Results are read a few frames later, once they are available, so the
+ * CPU never waits for the GPU. The cost of a chain is roughly proportional to its pixels, so the scale is moved towards
+ * the square root of the budget divided by the measured time. Changing the scale reallocates the scaled targets, so it
+ * only moves in steps of {@link #STEP}, waits {@link #COOLDOWN_FRAMES} frames between changes and only grows back once
+ * the chain is well below its budget.
+ */
+public class RenderScaleController {
+    public static final float STEP = 0.05F;
+    public static final int COOLDOWN_FRAMES = 30;
+    // Growing by a step makes the chain about 10% more expensive, so only grow if that still fits with some margin
+    private static final float GROW_THRESHOLD = 0.75F;
+    private static final float SMOOTHING = 0.1F;
+    private static final int QUERIES = 4;
+
+    private final float minScale;
+    private final float maxScale;
+    private final int[] queries = new int[QUERIES];
+    private final boolean[] pending = new boolean[QUERIES];
+    private int current;
+    private boolean measuring;
+    private float scale;
+    // -1 until a frame at the current scale has been measured
+    private double averageNanos = -1.0;
+    private int cooldown;
+
+    public RenderScaleController(float minScale, float maxScale) {
+        this.minScale = minScale;
+        this.maxScale = maxScale;
+        this.scale = maxScale;
+    }
+
+    public static boolean isSupported() {
+        GLCapabilities caps = GL.getCapabilities();
+        return caps.OpenGL33 || caps.GL_ARB_timer_query;
+    }
+
+    /**
+     * Start measuring the commands of this frame. Does nothing if every query is still waiting for its result
+     */
+    public void begin() {
+        RenderSystem.assertOnRenderThread();
+        if (queries[0] == 0)
+            glGenQueries(queries);
+        if (pending[current])
+            return;
+
+        glBeginQuery(GL_TIME_ELAPSED, queries[current]);
+        measuring = true;
+    }
+
+    public void end() {
+        if (!measuring)
+            return;
+
+        glEndQuery(GL_TIME_ELAPSED);
+        pending[current] = true;
+        current = (current + 1) % QUERIES;
+        measuring = false;
+    }
+
+    /**
+     * Read the finished queries and pick a new scale
+     * @param budgetNanos how long the chain may take on the GPU every frame
+     * @return whether the scale changed
+     */
+    public boolean update(long budgetNanos) {
+        for (int i = 0; i < QUERIES; i++) {
+            int query = queries[(current + i) % QUERIES];
+            if (!pending[(current + i) % QUERIES])
+                continue;
+            // Queries finish in order, so the later ones can't be available either
+            if (glGetQueryObjecti(query, GL_QUERY_RESULT_AVAILABLE) == GL_FALSE)
+                break;
+
+            pending[(current + i) % QUERIES] = false;
+            long nanos = glGetQueryObjecti64(query, GL_QUERY_RESULT);
+            // Measured before the last change, so it says nothing about the current scale
+            if (cooldown > 0)
+                continue;
+            averageNanos = averageNanos < 0.0 ? nanos : Mth.lerp(SMOOTHING, averageNanos, nanos);
+        }
+
+        if (cooldown > 0) {
+            cooldown--;
+            return false;
+        }
+        if (averageNanos <= 0.0)
+            return false;
+
+        float target = (float) (scale * Math.sqrt(budgetNanos / averageNanos));
+        target = Mth.clamp(Math.round(target / STEP) * STEP, minScale, maxScale);
+        if (Math.abs(target - scale) < STEP * 0.5F)
+            return false;
+        if (target > scale && averageNanos > budgetNanos * GROW_THRESHOLD)
+            return false;
+
+        scale = target;
+        averageNanos = -1.0;
+        cooldown = COOLDOWN_FRAMES;
+        return true;
+    }
+
+    public float getScale() {
+        return scale;
+    }
+
+    /**
+     * @return the smoothed time the chain took on the GPU at the current scale in milliseconds, or -1 if it hasn't been measured yet
+     */
+    public float getAverageMillis() {
+        return averageNanos < 0.0 ? -1F : (float) (averageNanos / 1.0E6);
+    }
+
+    public void destroy() {
+        if (queries[0] == 0)
+            return;
+
+        end();
+        glDeleteQueries(queries);
+        queries[0] = 0;
+        for (int i = 0; i < QUERIES; i++)
+            pending[i] = false;
+    }
+}
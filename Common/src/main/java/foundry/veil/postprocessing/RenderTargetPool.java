@@ -0,0 +1,227 @@
+package foundry.veil.postprocessing;
+
+import com.mojang.blaze3d.pipeline.RenderTarget;
+import com.mojang.blaze3d.pipeline.TextureTarget;
+import com.mojang.blaze3d.systems.RenderSystem;
+import foundry.veil.Veil;
+import net.minecraft.client.Minecraft;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.lwjgl.opengl.GL11.GL_RGBA8;
+
+/**
+ * Shares the memory of transient post chain targets between chains.
+ * <p>
+ * A transient target is only used while its chain is processed, like the usual "swap" target, so chains that run one
+ * after another can render into the same framebuffer. Each chain gets one target per size, format and depth
+ * combination for every transient target it declares, and different chains share them.
+ * Targets the size of the screen are shared regardless of the exact size and follow the screen when it is resized.
+ * <p>
+ * Chains can also use targets owned elsewhere with {@link #share(Object, RenderTarget)}, like the depth snapshot from
+ * {@link PostProcessingHandler#getDepthSnapshot()}. Those are never destroyed by the pool.
+ */
+public class RenderTargetPool {
+    private static final Map<Key, Entry> entries = new HashMap<>();
+    private static final Map<RenderTarget, Entry> targets = new IdentityHashMap<>();
+    private static final Map<Object, List<Entry>> owners = new IdentityHashMap<>();
+
+    private static Set<String> transientTargets = Set.of();
+    private static boolean loading;
+    private static long liveBytes;
+    private static long peakBytes;
+    private static long requestedBytes;
+
+    /**
+     * Start loading a post chain whose targets with the given names may be shared
+     */
+    public static void begin(Collection<String> transientTargets) {
+        RenderTargetPool.transientTargets = Set.copyOf(transientTargets);
+        loading = true;
+    }
+
+    /**
+     * Stop sharing targets of chains that are loaded afterwards
+     */
+    public static void end() {
+        transientTargets = Set.of();
+        loading = false;
+    }
+
+    /**
+     * @return whether a post chain is being loaded between {@link #begin(Collection)} and {@link #end()}
+     */
+    public static boolean isLoading() {
+        return loading;
+    }
+
+    public static boolean isTransient(String name) {
+        return transientTargets.contains(name);
+    }
+
+    public static boolean isPooled(RenderTarget target) {
+        return targets.containsKey(target);
+    }
+
+    /**
+     * Get a shared target for the specified chain. The chain must release it with {@link #release(Object, RenderTarget)} when it is closed.
+     *
+     * @param owner      the chain using the target
+     * @param fullScreen whether the target is the size of the screen and is resized with it
+     */
+    public static RenderTarget acquire(Object owner, int width, int height, boolean useDepth, boolean fullScreen) {
+        RenderSystem.assertOnRenderThread();
+        List<Entry> owned = owners.computeIfAbsent(owner, __ -> new ArrayList<>());
+
+        // Targets in the same chain may be used at the same time, so each one needs its own slot
+        int slot = 0;
+        for (Entry entry : owned) {
+            if (!entry.external && entry.key.matches(width, height, GL_RGBA8, useDepth, fullScreen)) {
+                slot++;
+            }
+        }
+
+        Key key = new Key(fullScreen ? -1 : width, fullScreen ? -1 : height, GL_RGBA8, useDepth, slot);
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            entry = new Entry(key, new TextureTarget(width, height, useDepth, Minecraft.ON_OSX), false);
+            entries.put(key, entry);
+            targets.put(entry.target, entry);
+            liveBytes += getSize(entry.target);
+            peakBytes = Math.max(peakBytes, liveBytes);
+        } else if (fullScreen && (entry.target.width != width || entry.target.height != height)) {
+            resize(entry.target, width, height);
+        }
+
+        entry.references++;
+        owned.add(entry);
+        requestedBytes += getSize(entry.target);
+        return entry.target;
+    }
+
+    /**
+     * Let the specified chain use a target owned elsewhere. The chain must release it with {@link #release(Object, RenderTarget)} when it is closed,
+     * which never destroys the target.
+     *
+     * @param owner  the chain using the target
+     * @param target the target to use
+     * @return the same target
+     */
+    public static RenderTarget share(Object owner, RenderTarget target) {
+        RenderSystem.assertOnRenderThread();
+        Entry entry = targets.get(target);
+        if (entry == null) {
+            entry = new Entry(null, target, true);
+            targets.put(target, entry);
+        }
+
+        entry.references++;
+        owners.computeIfAbsent(owner, __ -> new ArrayList<>()).add(entry);
+        requestedBytes += getSize(target);
+        return target;
+    }
+
+    /**
+     * Resize a shared target, unless another chain already resized it to the same size
+     */
+    public static void resize(RenderTarget target, int width, int height) {
+        if (target.width == width && target.height == height) {
+            return;
+        }
+
+        Entry entry = targets.get(target);
+        long oldSize = getSize(target);
+        target.resize(width, height, Minecraft.ON_OSX);
+        if (entry != null) {
+            long difference = getSize(target) - oldSize;
+            if (!entry.external) {
+                liveBytes += difference;
+            }
+            requestedBytes += difference * entry.references;
+            peakBytes = Math.max(peakBytes, liveBytes);
+        }
+    }
+
+    /**
+     * Release a target acquired by the specified chain. The target is destroyed once no chain uses it, unless it is owned elsewhere
+     *
+     * @return whether the target was shared and has been released
+     */
+    public static boolean release(Object owner, RenderTarget target) {
+        RenderSystem.assertOnRenderThread();
+        Entry entry = targets.get(target);
+        List<Entry> owned = owners.get(owner);
+        if (entry == null || owned == null || !owned.remove(entry)) {
+            return false;
+        }
+        if (owned.isEmpty()) {
+            owners.remove(owner);
+        }
+
+        requestedBytes -= getSize(target);
+        if (--entry.references <= 0) {
+            targets.remove(target);
+            if (!entry.external) {
+                entries.remove(entry.key);
+                liveBytes -= getSize(target);
+                target.destroyBuffers();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the memory currently used by shared targets in bytes
+     */
+    public static long getLiveBytes() {
+        return liveBytes;
+    }
+
+    /**
+     * @return the most memory ever used by shared targets at once in bytes
+     */
+    public static long getPeakBytes() {
+        return peakBytes;
+    }
+
+    /**
+     * @return the memory shared targets would use if every chain had its own in bytes
+     */
+    public static long getRequestedBytes() {
+        return requestedBytes;
+    }
+
+    public static void logStatistics() {
+        Veil.LOGGER.debug("Render target pool: {} targets using {} KB (peak {} KB), {} KB without sharing", entries.size(), liveBytes / 1024L, peakBytes / 1024L, requestedBytes / 1024L);
+    }
+
+    private static long getSize(RenderTarget target) {
+        // RGBA8 color plus a 32-bit depth buffer
+        return (long) target.width * target.height * (target.useDepth ? 8L : 4L);
+    }
+
+    private record Key(int width, int height, int format, boolean useDepth, int slot) {
+        boolean matches(int width, int height, int format, boolean useDepth, boolean fullScreen) {
+            return (fullScreen ? this.width == -1 && this.height == -1 : this.width == width && this.height == height) && this.format == format && this.useDepth == useDepth;
+        }
+    }
+
+    private static class Entry {
+        private final Key key;
+        private final RenderTarget target;
+        private final boolean external;
+        private int references;
+
+        private Entry(Key key, RenderTarget target, boolean external) {
+            this.key = key;
+            this.target = target;
+            this.external = external;
+        }
+    }
+}
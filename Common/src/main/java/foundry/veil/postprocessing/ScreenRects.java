@@ -0,0 +1,181 @@
+package foundry.veil.postprocessing;
+
+import com.mojang.math.Matrix4f;
+import com.mojang.math.Vector4f;
+
+import javax.annotation.Nullable;
+
+/**
+ * A few rectangles of the screen, from 0 to 1 on both axes, that a post chain is limited to.
+ * <p>
+ * While a chain is processed with rectangles, every pass only draws into them using the scissor test, once per
+ * rectangle. Everything outside keeps what was there before, so every pass of the chain must only read the pixel it
+ * writes (or its own rectangle), like the usual effect pass followed by a blit back into the main target.
+ * Blurs and other passes reading neighbouring pixels need the whole screen.
+ * <p>
+ * Overlapping rectangles are merged, and so are the closest ones once there are {@link #MAX_RECTS}, so no pixel is
+ * drawn twice by the same pass.
+ */
+public class ScreenRects {
+    public static final int MAX_RECTS = 8;
+
+    @Nullable
+    private static ScreenRects active;
+
+    // minX, minY, maxX, maxY of every rectangle
+    private final float[] rects = new float[MAX_RECTS * 4];
+    private int count;
+    private final Vector4f corner = new Vector4f();
+    private final float[] bounds = new float[4];
+
+    public void clear() {
+        count = 0;
+    }
+
+    public boolean isEmpty() {
+        return count == 0;
+    }
+
+    public int size() {
+        return count;
+    }
+
+    public void addFullScreen() {
+        count = 0;
+        add(0F, 0F, 1F, 1F);
+    }
+
+    /**
+     * Add a rectangle, clamped to the screen
+     */
+    public void add(float minX, float minY, float maxX, float maxY) {
+        minX = Math.max(minX, 0F);
+        minY = Math.max(minY, 0F);
+        maxX = Math.min(maxX, 1F);
+        maxY = Math.min(maxY, 1F);
+        if (minX >= maxX || minY >= maxY)
+            return;
+
+        // A merged rectangle may overlap others it didn't before, so start over until nothing overlaps
+        for (int i = 0; i < count; i++) {
+            int j = i * 4;
+            if (minX <= rects[j + 2] && maxX >= rects[j] && minY <= rects[j + 3] && maxY >= rects[j + 1]) {
+                minX = Math.min(minX, rects[j]);
+                minY = Math.min(minY, rects[j + 1]);
+                maxX = Math.max(maxX, rects[j + 2]);
+                maxY = Math.max(maxY, rects[j + 3]);
+                removeAt(i);
+                i = -1;
+            }
+        }
+
+        if (count == MAX_RECTS) {
+            int closest = 0;
+            float smallest = Float.MAX_VALUE;
+            for (int i = 0; i < count; i++) {
+                int j = i * 4;
+                float area = (Math.max(maxX, rects[j + 2]) - Math.min(minX, rects[j])) * (Math.max(maxY, rects[j + 3]) - Math.min(minY, rects[j + 1]));
+                if (area < smallest) {
+                    smallest = area;
+                    closest = i;
+                }
+            }
+            int j = closest * 4;
+            float closestMinX = rects[j], closestMinY = rects[j + 1], closestMaxX = rects[j + 2], closestMaxY = rects[j + 3];
+            removeAt(closest);
+            add(Math.min(minX, closestMinX), Math.min(minY, closestMinY), Math.max(maxX, closestMaxX), Math.max(maxY, closestMaxY));
+            return;
+        }
+
+        int j = count * 4;
+        rects[j] = minX;
+        rects[j + 1] = minY;
+        rects[j + 2] = maxX;
+        rects[j + 3] = maxY;
+        count++;
+    }
+
+    /**
+     * Add the area of the screen a sphere can cover, or the whole screen if it is too close to the camera
+     * @param x the center of the sphere relative to the camera
+     * @param viewProjection the projection matrix multiplied by the view rotation
+     */
+    public void addSphere(float x, float y, float z, float radius, Matrix4f viewProjection) {
+        if (projectSphere(x, y, z, radius, viewProjection, corner, bounds)) {
+            add(bounds[0], bounds[1], bounds[2], bounds[3]);
+        } else {
+            addFullScreen();
+        }
+    }
+
+    /**
+     * Find the area of the screen a sphere can cover
+     * @param x the center of the sphere relative to the camera
+     * @param viewProjection the projection matrix multiplied by the view rotation
+     * @param corner scratch space
+     * @param out receives minX, minY, maxX and maxY from 0 to 1, which may be outside the screen
+     * @return false if the sphere is too close to the camera to project, in which case it may cover any pixel
+     */
+    public static boolean projectSphere(float x, float y, float z, float radius, Matrix4f viewProjection, Vector4f corner, float[] out) {
+        float minX = Float.MAX_VALUE, minY = Float.MAX_VALUE, maxX = -Float.MAX_VALUE, maxY = -Float.MAX_VALUE;
+        // The projected corners of the box around the sphere contain the projected sphere if they are all in front of the camera
+        for (int i = 0; i < 8; i++) {
+            corner.set(x + ((i & 1) == 0 ? -radius : radius), y + ((i & 2) == 0 ? -radius : radius), z + ((i & 4) == 0 ? -radius : radius), 1F);
+            corner.transform(viewProjection);
+            if (corner.w() <= 1.0E-4F)
+                return false;
+            float screenX = corner.x() / corner.w() * .5F + .5F;
+            float screenY = corner.y() / corner.w() * .5F + .5F;
+            minX = Math.min(minX, screenX);
+            minY = Math.min(minY, screenY);
+            maxX = Math.max(maxX, screenX);
+            maxY = Math.max(maxY, screenY);
+        }
+        out[0] = minX;
+        out[1] = minY;
+        out[2] = maxX;
+        out[3] = maxY;
+        return true;
+    }
+
+    /**
+     * @return the fraction of the screen covered by the rectangles
+     */
+    public float getCoverage() {
+        float coverage = 0F;
+        for (int i = 0; i < count; i++) {
+            int j = i * 4;
+            coverage += (rects[j + 2] - rects[j]) * (rects[j + 3] - rects[j + 1]);
+        }
+        return coverage;
+    }
+
+    /**
+     * Get a rectangle in pixels of a target, rounded outwards
+     * @param out receives x, y, width and height
+     */
+    public void get(int index, int width, int height, int[] out) {
+        int j = index * 4;
+        out[0] = (int) Math.floor(rects[j] * width);
+        out[1] = (int) Math.floor(rects[j + 1] * height);
+        out[2] = (int) Math.ceil(rects[j + 2] * width) - out[0];
+        out[3] = (int) Math.ceil(rects[j + 3] * height) - out[1];
+    }
+
+    private void removeAt(int index) {
+        count--;
+        System.arraycopy(rects, (index + 1) * 4, rects, index * 4, (count - index) * 4);
+    }
+
+    /**
+     * @return the rectangles of the post chain being processed, or null if it covers the whole screen
+     */
+    @Nullable
+    public static ScreenRects getActive() {
+        return active;
+    }
+
+    static void setActive(@Nullable ScreenRects rects) {
+        active = rects;
+    }
+}
@@ -0,0 +1,29 @@
+package foundry.veil.shader;
+
+/**
+ * Remembers the program last bound through {@link com.mojang.blaze3d.platform.GlStateManager#_glUseProgram(int)}, so it
+ * can be restored without asking the driver. Programs bound with <code>glUseProgram</code> directly are not seen.
+ */
+public final class BoundProgram {
+
+    private static int program;
+
+    private BoundProgram() {
+    }
+
+    /**
+     * @return The id of the program that is currently bound, or <code>0</code> if none is
+     */
+    public static int get() {
+        return program;
+    }
+
+    /**
+     * Records that the specified program was bound. Called for every program vanilla binds.
+     *
+     * @param id The id of the program
+     */
+    public static void set(int id) {
+        program = id;
+    }
+}
@@ -0,0 +1,382 @@
+package foundry.veil.shader;
+
+import com.mojang.blaze3d.platform.GlStateManager;
+import com.mojang.blaze3d.shaders.Program;
+import com.mojang.blaze3d.systems.RenderSystem;
+import com.mojang.math.Matrix4f;
+import foundry.veil.mixin.client.shader.ProgramAccessor;
+import it.unimi.dsi.fastutil.objects.Object2IntMap;
+import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap;
+import net.minecraft.resources.ResourceLocation;
+import net.minecraft.server.packs.resources.ResourceProvider;
+import org.apache.commons.lang3.StringUtils;
+import org.lwjgl.opengl.GL;
+import org.lwjgl.opengl.GLCapabilities;
+import org.lwjgl.system.MemoryStack;
+import org.lwjgl.system.NativeResource;
+
+import java.io.IOException;
+import java.nio.FloatBuffer;
+import java.util.Collection;
+import java.util.Collections;
+
+import static org.lwjgl.opengl.GL43C.*;
+
+/**
+ * A program made of a single compute shader loaded from <code>shaders/core/&lt;name&gt;.csh</code>.
+ * <p>
+ * Uniforms are set with <code>glProgramUniform</code> where it is available, so the program does not need to be bound to
+ * change them. Otherwise the program is bound briefly for every change.
+ * Dispatching restores whatever program was bound before, see {@link BoundProgram}, which makes it safe to use in the
+ * middle of rendering, for example in {@link foundry.veil.postprocessing.PostProcessor#beforeProcess}.
+ */
+public class ComputeProgram implements NativeResource {
+
+    private final String name;
+    private final Collection<String> defines;
+    private final Object2IntMap<String> uniforms;
+    private final int[] workGroupSize;
+    private int programId;
+    private int previousProgram;
+
+    /**
+     * @param name The name of the compute shader, for example <code>veil:cull</code>
+     */
+    public ComputeProgram(ResourceLocation name) {
+        this(name, Collections.emptySet());
+    }
+
+    /**
+     * @param name    The name of the compute shader, for example <code>veil:cull</code>
+     * @param defines The preprocessor definitions to compile the shader with
+     */
+    public ComputeProgram(ResourceLocation name, Collection<String> defines) {
+        this.name = "minecraft".equals(name.getNamespace()) ? name.getPath() : name.toString();
+        this.defines = defines;
+        this.uniforms = new Object2IntOpenHashMap<>();
+        this.uniforms.defaultReturnValue(-1);
+        this.workGroupSize = new int[3];
+    }
+
+    /**
+     * @return Whether the current context supports compute shaders
+     */
+    public static boolean isSupported() {
+        GLCapabilities caps = GL.getCapabilities();
+        return caps.OpenGL43 || caps.GL_ARB_compute_shader;
+    }
+
+    private static boolean hasProgramUniforms() {
+        GLCapabilities caps = GL.getCapabilities();
+        return caps.OpenGL41 || caps.GL_ARB_separate_shader_objects;
+    }
+
+    /**
+     * Inserts a memory barrier so the results of previous dispatches are visible to later commands.
+     *
+     * @param barriers The <code>GL_*_BARRIER_BIT</code> values to wait for
+     */
+    public static void barrier(int barriers) {
+        RenderSystem.assertOnRenderThread();
+        glMemoryBarrier(barriers);
+    }
+
+    /**
+     * Makes image stores from previous dispatches visible to later image loads.
+     */
+    public static void imageBarrier() {
+        barrier(GL_SHADER_IMAGE_ACCESS_BARRIER_BIT);
+    }
+
+    /**
+     * Makes buffer writes from previous dispatches visible to later shader storage reads and indirect draws or dispatches.
+     */
+    public static void bufferBarrier() {
+        barrier(GL_SHADER_STORAGE_BARRIER_BIT | GL_COMMAND_BARRIER_BIT);
+    }
+
+    /**
+     * Makes image stores from previous dispatches visible to texture sampling and framebuffer reads.
+     */
+    public static void textureBarrier() {
+        barrier(GL_TEXTURE_FETCH_BARRIER_BIT | GL_FRAMEBUFFER_BARRIER_BIT | GL_TEXTURE_UPDATE_BARRIER_BIT);
+    }
+
+    /**
+     * Loads the compute shader and links it into a new program. Any previously loaded program is deleted.
+     *
+     * @param resourceProvider The provider for resources
+     * @throws IOException If the shader could not be compiled or linked
+     */
+    public void load(ResourceProvider resourceProvider) throws IOException {
+        RenderSystem.assertOnRenderThread();
+        if (!isSupported()) {
+            throw new IOException("Compute shaders are not supported");
+        }
+
+        Program stage = VeilShaderLoader.getOrCreateVariant(resourceProvider, GL_COMPUTE_SHADER, this.name, this.defines);
+        int program = GlStateManager.glCreateProgram();
+        GlStateManager.glAttachShader(program, ((ProgramAccessor) stage).getId());
+        GlStateManager.glLinkProgram(program);
+        if (GlStateManager.glGetProgrami(program, GL_LINK_STATUS) == 0) {
+            String error = StringUtils.trim(GlStateManager.glGetProgramInfoLog(program, 32768));
+            GlStateManager.glDeleteProgram(program);
+            throw new IOException("Couldn't link compute shader (" + this.name + ") : " + error);
+        }
+
+        this.free();
+        this.programId = program;
+        glGetProgramiv(program, GL_COMPUTE_WORK_GROUP_SIZE, this.workGroupSize);
+    }
+
+    /**
+     * @return Whether the program has been loaded
+     */
+    public boolean isLoaded() {
+        return this.programId != 0;
+    }
+
+    /**
+     * Retrieves the location of a uniform in this program.
+     *
+     * @param name The name of the uniform
+     * @return The location or <code>-1</code> if the uniform doesn't exist
+     */
+    public int getUniformLocation(String name) {
+        if (!this.uniforms.containsKey(name)) {
+            this.uniforms.put(name, GlStateManager._glGetUniformLocation(this.programId, name));
+        }
+        return this.uniforms.getInt(name);
+    }
+
+    public void setInt(String name, int value) {
+        int location = this.getUniformLocation(name);
+        if (location == -1) {
+            return;
+        }
+
+        if (hasProgramUniforms()) {
+            glProgramUniform1i(this.programId, location, value);
+        } else {
+            this.bind();
+            glUniform1i(location, value);
+            this.unbind();
+        }
+    }
+
+    public void setFloat(String name, float value) {
+        int location = this.getUniformLocation(name);
+        if (location == -1) {
+            return;
+        }
+
+        if (hasProgramUniforms()) {
+            glProgramUniform1f(this.programId, location, value);
+        } else {
+            this.bind();
+            glUniform1f(location, value);
+            this.unbind();
+        }
+    }
+
+    public void setVector(String name, float x, float y) {
+        int location = this.getUniformLocation(name);
+        if (location == -1) {
+            return;
+        }
+
+        if (hasProgramUniforms()) {
+            glProgramUniform2f(this.programId, location, x, y);
+        } else {
+            this.bind();
+            glUniform2f(location, x, y);
+            this.unbind();
+        }
+    }
+
+    public void setVector(String name, float x, float y, float z) {
+        int location = this.getUniformLocation(name);
+        if (location == -1) {
+            return;
+        }
+
+        if (hasProgramUniforms()) {
+            glProgramUniform3f(this.programId, location, x, y, z);
+        } else {
+            this.bind();
+            glUniform3f(location, x, y, z);
+            this.unbind();
+        }
+    }
+
+    public void setVector(String name, float x, float y, float z, float w) {
+        int location = this.getUniformLocation(name);
+        if (location == -1) {
+            return;
+        }
+
+        if (hasProgramUniforms()) {
+            glProgramUniform4f(this.programId, location, x, y, z, w);
+        } else {
+            this.bind();
+            glUniform4f(location, x, y, z, w);
+            this.unbind();
+        }
+    }
+
+    public void setMatrix(String name, Matrix4f value) {
+        int location = this.getUniformLocation(name);
+        if (location == -1) {
+            return;
+        }
+
+        try (MemoryStack stack = MemoryStack.stackPush()) {
+            FloatBuffer buffer = stack.mallocFloat(16);
+            value.store(buffer);
+            if (hasProgramUniforms()) {
+                glProgramUniformMatrix4fv(this.programId, location, false, buffer);
+            } else {
+                this.bind();
+                glUniformMatrix4fv(location, false, buffer);
+                this.unbind();
+            }
+        }
+    }
+
+    /**
+     * Binds a texture level as an image and points the specified <code>image*</code> uniform at it.
+     *
+     * @param name    The name of the image uniform
+     * @param unit    The image unit to bind to
+     * @param texture The id of the texture
+     * @param level   The mipmap level to bind
+     * @param access  <code>GL_READ_ONLY</code>, <code>GL_WRITE_ONLY</code> or <code>GL_READ_WRITE</code>
+     * @param format  The internal format to interpret the texels as, for example <code>GL_RGBA8</code>
+     */
+    public void bindImage(String name, int unit, int texture, int level, int access, int format) {
+        glBindImageTexture(unit, texture, level, false, 0, access, format);
+        this.setInt(name, unit);
+    }
+
+    /**
+     * Binds a texture and points the specified sampler uniform at it.
+     *
+     * @param name    The name of the sampler uniform
+     * @param unit    The texture unit to bind to
+     * @param target  The texture target, for example <code>GL_TEXTURE_2D</code>
+     * @param texture The id of the texture
+     */
+    public void bindTexture(String name, int unit, int target, int texture) {
+        RenderSystem.activeTexture(GL_TEXTURE0 + unit);
+        if (target == GL_TEXTURE_2D) {
+            GlStateManager._bindTexture(texture); // Keep vanilla's texture cache in sync
+        } else {
+            glBindTexture(target, texture);
+        }
+        RenderSystem.activeTexture(GL_TEXTURE0);
+        this.setInt(name, unit);
+    }
+
+    /**
+     * Binds a buffer to the specified shader storage block.
+     *
+     * @param name    The name of the buffer block
+     * @param binding The binding point to use
+     * @param buffer  The id of the buffer
+     */
+    public void bindStorageBuffer(String name, int binding, int buffer) {
+        int index = glGetProgramResourceIndex(this.programId, GL_SHADER_STORAGE_BLOCK, name);
+        if (index != GL_INVALID_INDEX) {
+            glShaderStorageBlockBinding(this.programId, index, binding);
+        }
+        glBindBufferBase(GL_SHADER_STORAGE_BUFFER, binding, buffer);
+    }
+
+    /**
+     * Binds a buffer to the specified uniform block.
+     *
+     * @param name    The name of the uniform block
+     * @param binding The binding point to use
+     * @param buffer  The id of the buffer
+     */
+    public void bindUniformBuffer(String name, int binding, int buffer) {
+        int index = glGetUniformBlockIndex(this.programId, name);
+        if (index != GL_INVALID_INDEX) {
+            glUniformBlockBinding(this.programId, index, binding);
+        }
+        glBindBufferBase(GL_UNIFORM_BUFFER, binding, buffer);
+    }
+
+    /**
+     * @return The local work group size declared in the shader as <code>[x, y, z]</code>
+     */
+    public int[] getWorkGroupSize() {
+        return this.workGroupSize.clone();
+    }
+
+    /**
+     * Dispatches the specified number of work groups.
+     *
+     * @param x The number of work groups in the x direction
+     * @param y The number of work groups in the y direction
+     * @param z The number of work groups in the z direction
+     */
+    public void dispatch(int x, int y, int z) {
+        this.bind();
+        glDispatchCompute(x, y, z);
+        this.unbind();
+    }
+
+    /**
+     * Dispatches enough work groups to cover at least the specified number of invocations in each direction.
+     *
+     * @param width  The number of invocations in the x direction
+     * @param height The number of invocations in the y direction
+     * @param depth  The number of invocations in the z direction
+     */
+    public void dispatchThreads(int width, int height, int depth) {
+        this.dispatch(
+                Math.max(1, (width + this.workGroupSize[0] - 1) / this.workGroupSize[0]),
+                Math.max(1, (height + this.workGroupSize[1] - 1) / this.workGroupSize[1]),
+                Math.max(1, (depth + this.workGroupSize[2] - 1) / this.workGroupSize[2]));
+    }
+
+    /**
+     * Dispatches using the work group counts stored in a buffer as three consecutive unsigned integers.
+     *
+     * @param buffer The id of the buffer containing the counts
+     * @param offset The offset in bytes of the counts in the buffer
+     */
+    public void dispatchIndirect(int buffer, long offset) {
+        this.bind();
+        glBindBuffer(GL_DISPATCH_INDIRECT_BUFFER, buffer);
+        glDispatchComputeIndirect(offset);
+        glBindBuffer(GL_DISPATCH_INDIRECT_BUFFER, 0);
+        this.unbind();
+    }
+
+    private void bind() {
+        RenderSystem.assertOnRenderThread();
+        if (this.programId == 0) {
+            throw new IllegalStateException("Compute shader " + this.name + " is not loaded");
+        }
+
+        // Vanilla caches the bound program, so it has to be restored to keep the cache valid
+        this.previousProgram = BoundProgram.get();
+        GlStateManager._glUseProgram(this.programId);
+    }
+
+    private void unbind() {
+        GlStateManager._glUseProgram(this.previousProgram);
+    }
+
+    @Override
+    public void free() {
+        if (this.programId != 0) {
+            RenderSystem.assertOnRenderThread();
+            GlStateManager.glDeleteProgram(this.programId);
+            this.programId = 0;
+        }
+        this.uniforms.clear();
+    }
+}
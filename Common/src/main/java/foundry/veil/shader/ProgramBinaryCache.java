@@ -0,0 +1,327 @@
+package foundry.veil.shader;
+
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.mojang.blaze3d.shaders.Shader;
+import com.mojang.blaze3d.systems.RenderSystem;
+import com.mojang.logging.LogUtils;
+import net.minecraft.client.Minecraft;
+import net.minecraft.client.renderer.EffectInstance;
+import net.minecraft.client.renderer.ShaderInstance;
+import org.lwjgl.opengl.GL;
+import org.lwjgl.opengl.GLCapabilities;
+import org.lwjgl.system.MemoryStack;
+import org.lwjgl.system.MemoryUtil;
+import org.slf4j.Logger;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import static org.lwjgl.opengl.GL43C.*;
+
+/**
+ * Stores linked shader programs on disk using <code>glGetProgramBinary</code> and restores them with
+ * <code>glProgramBinary</code> to skip linking on later loads.
+ * <p>
+ * Programs are keyed by a hash of the source of every attached stage, the name of the shader, and the driver vendor,
+ * renderer and version. Entries are evicted least recently used first once the cache grows past its size cap.
+ * The cache can be disabled with <code>-Dveil.disableProgramCache=true</code> and resized with
+ * <code>-Dveil.programCacheSize=&lt;megabytes&gt;</code>.
+ */
+public final class ProgramBinaryCache {
+
+    private static final Logger LOGGER = LogUtils.getLogger();
+    private static final int VERSION = 1;
+    private static final String EXTENSION = ".bin";
+    private static final boolean ENABLED = !Boolean.getBoolean("veil.disableProgramCache");
+    private static final long MAX_SIZE = Long.getLong("veil.programCacheSize", 64L) * 1024L * 1024L;
+
+    // Access ordered, so the first entry is always the least recently used
+    private static final Map<String, Long> ENTRIES = new LinkedHashMap<>(16, 0.75F, true);
+    private static long size;
+    private static Path folder;
+    private static String driver;
+    private static Boolean supported;
+
+    private static int hits;
+    private static int misses;
+    private static int failures;
+
+    private ProgramBinaryCache() {
+    }
+
+    /**
+     * @return Whether program binaries can be cached on the current driver
+     */
+    public static boolean isSupported() {
+        if (supported == null) {
+            RenderSystem.assertOnRenderThread();
+            GLCapabilities caps = GL.getCapabilities();
+            supported = ENABLED && (caps.OpenGL41 || caps.GL_ARB_get_program_binary) && glGetInteger(GL_NUM_PROGRAM_BINARY_FORMATS) > 0;
+            if (supported) {
+                driver = glGetString(GL_VENDOR) + ";" + glGetString(GL_RENDERER) + ";" + glGetString(GL_VERSION);
+                folder = Minecraft.getInstance().gameDirectory.toPath().resolve(".veil").resolve("program_cache");
+                loadIndex();
+            }
+        }
+        return supported;
+    }
+
+    /**
+     * Computes the cache key for the specified shader. All stages must already be attached to the program.
+     *
+     * @param shader The shader to get the key of
+     * @return The key to cache the program binary under
+     */
+    public static String getKey(Shader shader) {
+        int program = shader.getId();
+        int[] shaders = new int[glGetProgrami(program, GL_ATTACHED_SHADERS)];
+        glGetAttachedShaders(program, null, shaders);
+
+        // Attachment order doesn't change the linked result, so sort by type to keep the key stable
+        Integer[] sorted = Arrays.stream(shaders).boxed().toArray(Integer[]::new);
+        Arrays.sort(sorted, Comparator.comparingInt(id -> glGetShaderi(id, GL_SHADER_TYPE)));
+
+        Hasher hasher = Hashing.sha256().newHasher();
+        hasher.putInt(VERSION);
+        hasher.putString(driver, StandardCharsets.UTF_8);
+        hasher.putString(getName(shader), StandardCharsets.UTF_8);
+        for (int id : sorted) {
+            hasher.putInt(glGetShaderi(id, GL_SHADER_TYPE));
+            hasher.putString(glGetShaderSource(id), StandardCharsets.UTF_8);
+        }
+        return hasher.hash().toString();
+    }
+
+    /**
+     * Attempts to restore the specified program from the cache.
+     *
+     * @param shader The shader to load the binary into
+     * @param key    The key of the program
+     * @return Whether the program was restored and is linked
+     */
+    public static boolean load(Shader shader, String key) {
+        RenderSystem.assertOnRenderThread();
+        // get, unlike containsKey, marks the entry as recently used
+        if (ENTRIES.get(key) == null) {
+            misses++;
+            return false;
+        }
+
+        Path path = folder.resolve(key + EXTENSION);
+        ByteBuffer binary = null;
+        try (DataInputStream stream = new DataInputStream(Files.newInputStream(path))) {
+            if (stream.readInt() != VERSION) {
+                throw new IOException("Unsupported cache version");
+            }
+
+            int format = stream.readInt();
+            byte[] data = stream.readAllBytes();
+            binary = MemoryUtil.memAlloc(data.length);
+            binary.put(data).flip();
+
+            glProgramBinary(shader.getId(), format, binary);
+            if (glGetProgrami(shader.getId(), GL_LINK_STATUS) == GL_FALSE) {
+                throw new IOException("Driver rejected program binary");
+            }
+
+            Files.setLastModifiedTime(path, FileTime.fromMillis(System.currentTimeMillis()));
+            hits++;
+            return true;
+        } catch (IOException e) {
+            LOGGER.debug("Failed to load cached program {}: {}", getName(shader), e.getMessage());
+            remove(key);
+            failures++;
+            misses++;
+            return false;
+        } finally {
+            if (binary != null) {
+                MemoryUtil.memFree(binary);
+            }
+        }
+    }
+
+    /**
+     * Hints to the driver that the binary of the specified program will be retrieved after linking.
+     *
+     * @param shader The shader that is about to be linked
+     */
+    public static void prepareLink(Shader shader) {
+        glProgramParameteri(shader.getId(), GL_PROGRAM_BINARY_RETRIEVABLE_HINT, GL_TRUE);
+    }
+
+    /**
+     * Writes the binary of the specified linked program to the cache.
+     *
+     * @param shader The shader to save
+     * @param key    The key of the program
+     */
+    public static void store(Shader shader, String key) {
+        RenderSystem.assertOnRenderThread();
+        int program = shader.getId();
+        if (glGetProgrami(program, GL_LINK_STATUS) == GL_FALSE) {
+            return;
+        }
+
+        int length = glGetProgrami(program, GL_PROGRAM_BINARY_LENGTH);
+        if (length <= 0 || length > MAX_SIZE) {
+            return;
+        }
+
+        ByteBuffer binary = MemoryUtil.memAlloc(length);
+        try (MemoryStack stack = MemoryStack.stackPush()) {
+            IntBuffer format = stack.mallocInt(1);
+            glGetProgramBinary(program, null, format, binary);
+
+            byte[] data = new byte[length];
+            binary.get(data);
+
+            Files.createDirectories(folder);
+            Path path = folder.resolve(key + EXTENSION);
+            try (DataOutputStream stream = new DataOutputStream(Files.newOutputStream(path))) {
+                stream.writeInt(VERSION);
+                stream.writeInt(format.get(0));
+                stream.write(data);
+            }
+
+            Long old = ENTRIES.put(key, Files.size(path));
+            size += ENTRIES.get(key) - (old != null ? old : 0L);
+            evict();
+        } catch (IOException e) {
+            LOGGER.warn("Failed to cache program {}: {}", getName(shader), e.getMessage());
+        } finally {
+            MemoryUtil.memFree(binary);
+        }
+    }
+
+    /**
+     * Deletes every cached program binary.
+     */
+    public static void clear() {
+        RenderSystem.assertOnRenderThread();
+        for (String key : new ArrayList<>(ENTRIES.keySet())) {
+            remove(key);
+        }
+    }
+
+    /**
+     * Resets the hit and miss counters.
+     */
+    public static void resetStatistics() {
+        hits = 0;
+        misses = 0;
+        failures = 0;
+    }
+
+    /**
+     * Logs the hit and miss counters since the last reset.
+     */
+    public static void logStatistics() {
+        if (supported == Boolean.TRUE && hits + misses > 0) {
+            LOGGER.info("Program binary cache: {} hits, {} misses ({} rejected), {} entries using {} KB", hits, misses, failures, ENTRIES.size(), size / 1024L);
+        }
+    }
+
+    /**
+     * @return The number of programs restored from the cache since the last reset
+     */
+    public static int getHits() {
+        return hits;
+    }
+
+    /**
+     * @return The number of programs that had to be linked since the last reset
+     */
+    public static int getMisses() {
+        return misses;
+    }
+
+    /**
+     * @return The total size of all cached binaries in bytes
+     */
+    public static long getSize() {
+        return size;
+    }
+
+    /**
+     * @param shader The shader to get the name of
+     * @return The name of the shader, or its class name if it has none
+     */
+    public static String getName(Shader shader) {
+        if (shader instanceof ShaderInstance instance) {
+            return instance.getName();
+        }
+        if (shader instanceof EffectInstance instance) {
+            return instance.getName();
+        }
+        return shader.getClass().getName();
+    }
+
+    private static void loadIndex() {
+        if (!Files.isDirectory(folder)) {
+            return;
+        }
+
+        try (Stream<Path> files = Files.list(folder)) {
+            List<Path> paths = files.filter(path -> path.getFileName().toString().endsWith(EXTENSION)).sorted(Comparator.comparing(ProgramBinaryCache::getLastModified)).toList();
+            for (Path path : paths) {
+                String name = path.getFileName().toString();
+                long fileSize = Files.size(path);
+                ENTRIES.put(name.substring(0, name.length() - EXTENSION.length()), fileSize);
+                size += fileSize;
+            }
+            evict();
+        } catch (IOException e) {
+            LOGGER.warn("Failed to read program cache index: {}", e.getMessage());
+        }
+    }
+
+    private static FileTime getLastModified(Path path) {
+        try {
+            return Files.getLastModifiedTime(path);
+        } catch (IOException e) {
+            return FileTime.fromMillis(0);
+        }
+    }
+
+    private static void evict() {
+        Iterator<Map.Entry<String, Long>> iterator = ENTRIES.entrySet().iterator();
+        while (size > MAX_SIZE && iterator.hasNext()) {
+            Map.Entry<String, Long> entry = iterator.next();
+            iterator.remove();
+            size -= entry.getValue();
+            delete(entry.getKey());
+        }
+    }
+
+    private static void remove(String key) {
+        Long removed = ENTRIES.remove(key);
+        if (removed != null) {
+            size -= removed;
+        }
+        delete(key);
+    }
+
+    private static void delete(String key) {
+        try {
+            Files.deleteIfExists(folder.resolve(key + EXTENSION));
+        } catch (IOException e) {
+            LOGGER.warn("Failed to delete cached program {}: {}", key, e.getMessage());
+        }
+    }
+}
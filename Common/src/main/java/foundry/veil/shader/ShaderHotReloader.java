@@ -0,0 +1,284 @@
+package foundry.veil.shader;
+
+import com.mojang.blaze3d.shaders.EffectProgram;
+import com.mojang.blaze3d.shaders.Program;
+import com.mojang.blaze3d.systems.RenderSystem;
+import com.mojang.logging.LogUtils;
+import foundry.veil.ext.ShaderInstanceExt;
+import foundry.veil.mixin.client.AbstractPackResourcesAccessor;
+import foundry.veil.mixin.client.GameRendererAccessor;
+import foundry.veil.postprocessing.PostProcessingHandler;
+import foundry.veil.postprocessing.PostProcessor;
+import net.minecraft.ResourceLocationException;
+import net.minecraft.client.Minecraft;
+import net.minecraft.client.renderer.EffectInstance;
+import net.minecraft.client.renderer.ShaderInstance;
+import net.minecraft.resources.ResourceLocation;
+import net.minecraft.server.packs.FolderPackResources;
+import net.minecraft.server.packs.resources.ResourceManager;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+/**
+ * Watches unpacked resource directories for shader edits and recompiles only the programs that use the changed files.
+ * <p>
+ * This is meant for development and is enabled with <code>-Dveil.hotReload=true</code>. Resource packs in the
+ * resource pack folder are always watched, and additional resource roots (for example the build output of a mod) can be
+ * added with <code>-Dveil.watchResources=&lt;path&gt;[;&lt;path&gt;...]</code> using the platform path separator.
+ */
+public final class ShaderHotReloader {
+
+    private static final Logger LOGGER = LogUtils.getLogger();
+    private static final boolean ENABLED = Boolean.getBoolean("veil.hotReload");
+    // Editors often write a file several times when saving, so wait for changes to settle
+    private static final long DEBOUNCE_MS = 100L;
+
+    private static final Set<Path> ROOTS = ConcurrentHashMap.newKeySet();
+    private static final Map<WatchKey, WatchedDirectory> DIRECTORIES = new ConcurrentHashMap<>();
+    private static final Set<ResourceLocation> CHANGED = ConcurrentHashMap.newKeySet();
+    private static volatile long lastChange;
+    private static WatchService watchService;
+
+    private ShaderHotReloader() {
+    }
+
+    /**
+     * @return Whether shader hot reloading is enabled
+     */
+    public static boolean isEnabled() {
+        return ENABLED;
+    }
+
+    /**
+     * Starts watching all unpacked resource directories of the specified manager that are not already watched.
+     *
+     * @param resourceManager The resource manager to get packs from
+     */
+    public static void watch(ResourceManager resourceManager) {
+        if (!ENABLED) {
+            return;
+        }
+
+        List<Path> roots = new ArrayList<>();
+        resourceManager.listPacks().forEach(pack -> {
+            if (pack instanceof FolderPackResources) {
+                roots.add(((AbstractPackResourcesAccessor) pack).getFile().toPath());
+            }
+        });
+        String extra = System.getProperty("veil.watchResources");
+        if (extra != null) {
+            for (String path : extra.split(File.pathSeparator)) {
+                if (!path.isBlank()) {
+                    roots.add(Paths.get(path.trim()));
+                }
+            }
+        }
+
+        try {
+            if (watchService == null) {
+                watchService = FileSystems.getDefault().newWatchService();
+                Thread thread = new Thread(ShaderHotReloader::run, "Veil Shader Watcher");
+                thread.setDaemon(true);
+                thread.start();
+            }
+
+            for (Path root : roots) {
+                root = root.toAbsolutePath().normalize();
+                if (Files.isDirectory(root) && ROOTS.add(root)) {
+                    registerAll(root, root);
+                    LOGGER.info("Watching {} for shader changes", root);
+                }
+            }
+        } catch (IOException e) {
+            LOGGER.error("Failed to watch resources for shader changes", e);
+        }
+    }
+
+    /**
+     * Recompiles every program affected by files changed since the last call. Called once per frame on the render thread.
+     */
+    public static void poll() {
+        if (CHANGED.isEmpty() || System.currentTimeMillis() - lastChange < DEBOUNCE_MS) {
+            return;
+        }
+
+        RenderSystem.assertOnRenderThread();
+        Set<ResourceLocation> affected = new HashSet<>();
+        Iterator<ResourceLocation> iterator = CHANGED.iterator();
+        while (iterator.hasNext()) {
+            ResourceLocation location = iterator.next();
+            iterator.remove();
+
+            ShaderIncludeCache.invalidate(location);
+            affected.add(location);
+            affected.addAll(ShaderIncludeCache.getDependents(location));
+        }
+
+        // Anything prepared during the last reload is now potentially stale
+        VeilShaderLoader.clearPrepared();
+        reloadCoreShaders(affected);
+        reloadPostProcessors(affected);
+    }
+
+    private static void reloadCoreShaders(Set<ResourceLocation> affected) {
+        ResourceManager resourceManager = Minecraft.getInstance().getResourceManager();
+        for (ShaderInstance shader : ((GameRendererAccessor) Minecraft.getInstance().gameRenderer).getShaders().values()) {
+            ResourceLocation id = new ResourceLocation(shader.getName());
+            if (affected.contains(new ResourceLocation(id.getNamespace(), "shaders/core/" + id.getPath() + ".json"))) {
+                LOGGER.warn("Shader definition {} changed, press F3+T to apply it", shader.getName());
+                continue;
+            }
+
+            if (((ShaderInstanceExt) shader).getStages().entrySet().stream().noneMatch(entry -> affected.contains(VeilShaderLoader.getLocation(entry.getKey(), entry.getValue().getName())))) {
+                continue;
+            }
+
+            long start = System.nanoTime();
+            ((ShaderInstanceExt) shader).recompileAsync(resourceManager).whenComplete((unused, error) -> {
+                if (error != null) {
+                    LOGGER.error("Failed to hot reload shader {}: {}", shader.getName(), error.getMessage());
+                } else {
+                    LOGGER.info("Hot reloaded shader {} in {}ms", shader.getName(), (System.nanoTime() - start) / 1_000_000L);
+                }
+            });
+        }
+    }
+
+    private static void reloadPostProcessors(Set<ResourceLocation> affected) {
+        List<PostProcessor> processors = new ArrayList<>();
+        for (PostProcessor processor : PostProcessingHandler.getInstances()) {
+            if (dependsOn(processor, affected)) {
+                processors.add(processor);
+            }
+        }
+        if (processors.isEmpty()) {
+            return;
+        }
+
+        // Release all chains first so programs shared between them are actually closed,
+        // then forget any stale program still referenced elsewhere so it is compiled again from the new source
+        processors.forEach(PostProcessor::unload);
+        for (Program.Type type : Program.Type.values()) {
+            type.getPrograms().entrySet().removeIf(entry -> entry.getValue() instanceof EffectProgram && affected.contains(VeilShaderLoader.getEffectLocation(type, entry.getKey())));
+        }
+
+        // Chains are loaded again the next time each processor is applied
+        for (PostProcessor processor : processors) {
+            LOGGER.info("Reloading post processor {}", processor.getPostChainLocation());
+        }
+    }
+
+    private static boolean dependsOn(PostProcessor processor, Set<ResourceLocation> affected) {
+        ResourceLocation chain = processor.getPostChainLocation();
+        if (affected.contains(new ResourceLocation(chain.getNamespace(), "shaders/post/" + chain.getPath() + ".json"))) {
+            return true;
+        }
+
+        for (EffectInstance effect : processor.getEffects()) {
+            ResourceLocation id = new ResourceLocation(effect.getName());
+            if (affected.contains(new ResourceLocation(id.getNamespace(), "shaders/program/" + id.getPath() + ".json")) ||
+                    affected.contains(VeilShaderLoader.getEffectLocation(Program.Type.VERTEX, effect.getVertexProgram().getName())) ||
+                    affected.contains(VeilShaderLoader.getEffectLocation(Program.Type.FRAGMENT, effect.getFragmentProgram().getName()))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void registerAll(Path root, Path directory) throws IOException {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            for (Path path : (Iterable<Path>) paths.filter(Files::isDirectory)::iterator) {
+                DIRECTORIES.put(path.register(watchService, ENTRY_CREATE, ENTRY_MODIFY), new WatchedDirectory(root, path));
+            }
+        }
+    }
+
+    private static void run() {
+        while (true) {
+            WatchKey key;
+            try {
+                key = watchService.take();
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+
+            WatchedDirectory directory = DIRECTORIES.get(key);
+            if (directory != null) {
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == OVERFLOW) {
+                        continue;
+                    }
+
+                    Path path = directory.path().resolve((Path) event.context());
+                    if (Files.isDirectory(path)) {
+                        if (event.kind() == ENTRY_CREATE) {
+                            try {
+                                registerAll(directory.root(), path);
+                            } catch (IOException e) {
+                                LOGGER.warn("Failed to watch {}: {}", path, e.getMessage());
+                            }
+                        }
+                        continue;
+                    }
+
+                    ResourceLocation location = getLocation(directory.root(), path);
+                    if (location != null) {
+                        CHANGED.add(location);
+                        lastChange = System.currentTimeMillis();
+                    }
+                }
+            }
+
+            if (!key.reset()) {
+                DIRECTORIES.remove(key);
+            }
+        }
+    }
+
+    @Nullable
+    private static ResourceLocation getLocation(Path root, Path file) {
+        // Only <root>/assets/<namespace>/shaders/... is of interest
+        Path relative = root.relativize(file);
+        if (relative.getNameCount() < 4 || !"assets".equals(relative.getName(0).toString()) || !"shaders".equals(relative.getName(2).toString())) {
+            return null;
+        }
+
+        StringBuilder path = new StringBuilder();
+        for (int i = 2; i < relative.getNameCount(); i++) {
+            if (i > 2) {
+                path.append('/');
+            }
+            path.append(relative.getName(i));
+        }
+
+        try {
+            return new ResourceLocation(relative.getName(1).toString(), path.toString());
+        } catch (ResourceLocationException e) {
+            return null;
+        }
+    }
+
+    private record WatchedDirectory(Path root, Path path) {
+    }
+}
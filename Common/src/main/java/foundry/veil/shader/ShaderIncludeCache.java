@@ -0,0 +1,136 @@
+package foundry.veil.shader;
+
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import net.minecraft.resources.ResourceLocation;
+import net.minecraft.server.packs.resources.ResourceProvider;
+import org.apache.commons.io.IOUtils;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Caches the source of GLSL files imported with <code>#moj_import</code> so each is only read once per reload,
+ * and keeps track of which shader programs import each file.
+ * <p>
+ * Includes can also be generated at runtime with {@link #register(ResourceLocation, String)}. Generated includes take
+ * precedence over resources and are kept across reloads.
+ */
+public final class ShaderIncludeCache {
+
+    private static final Map<ResourceLocation, Include> INCLUDES = new ConcurrentHashMap<>();
+    private static final Map<ResourceLocation, Include> GENERATED = new ConcurrentHashMap<>();
+    private static final Map<ResourceLocation, Set<ResourceLocation>> DEPENDENTS = new ConcurrentHashMap<>();
+
+    private ShaderIncludeCache() {
+    }
+
+    /**
+     * Retrieves the source of an include file and records that the specified program depends on it.
+     *
+     * @param resourceProvider The provider to load the include from if it is not cached
+     * @param location         The location of the include file
+     * @param dependent        The location of the program file importing the include
+     * @return The source of the include
+     * @throws IOException If the include could not be read
+     */
+    public static String getSource(ResourceProvider resourceProvider, ResourceLocation location, ResourceLocation dependent) throws IOException {
+        DEPENDENTS.computeIfAbsent(location, __ -> ConcurrentHashMap.newKeySet()).add(dependent);
+        return get(resourceProvider, location).source();
+    }
+
+    /**
+     * Retrieves the cached include at the specified location or reads it if it has not been loaded yet.
+     *
+     * @param resourceProvider The provider to load the include from if it is not cached
+     * @param location         The location of the include file
+     * @return The include file
+     * @throws IOException If the include could not be read
+     */
+    public static Include get(ResourceProvider resourceProvider, ResourceLocation location) throws IOException {
+        Include include = GENERATED.get(location);
+        if (include != null) {
+            return include;
+        }
+
+        include = INCLUDES.get(location);
+        if (include != null) {
+            return include;
+        }
+
+        try (Reader reader = resourceProvider.openAsReader(location)) {
+            String source = IOUtils.toString(reader);
+            include = new Include(location, source, Hashing.sha256().hashString(source, StandardCharsets.UTF_8));
+        }
+
+        // Another thread may have read the same file in the meantime, so make sure everyone uses the same instance
+        Include existing = INCLUDES.putIfAbsent(location, include);
+        return existing != null ? existing : include;
+    }
+
+    /**
+     * Registers source generated at runtime as an include. Programs that already imported a different source at the
+     * same location are not recompiled automatically.
+     *
+     * @param location The location to import the include from, for example <code>veil:shaders/include/foo.glsl</code>
+     * @param source   The GLSL source of the include
+     * @return Whether the source is different from the source previously registered at the location
+     */
+    public static boolean register(ResourceLocation location, String source) {
+        Include include = new Include(location, source, Hashing.sha256().hashString(source, StandardCharsets.UTF_8));
+        Include previous = GENERATED.put(location, include);
+        return previous == null || !previous.hash().equals(include.hash());
+    }
+
+    /**
+     * Removes an include registered with {@link #register(ResourceLocation, String)}.
+     *
+     * @param location The location of the include
+     */
+    public static void unregister(ResourceLocation location) {
+        GENERATED.remove(location);
+    }
+
+    /**
+     * Retrieves all program files that have imported the specified include, either directly or through another include.
+     *
+     * @param location The location of the include file
+     * @return A view of the programs that depend on the include
+     */
+    public static Set<ResourceLocation> getDependents(ResourceLocation location) {
+        Set<ResourceLocation> dependents = DEPENDENTS.get(location);
+        return dependents != null ? Collections.unmodifiableSet(dependents) : Collections.emptySet();
+    }
+
+    /**
+     * Forgets the cached source of the specified include so it is read again the next time it is imported.
+     *
+     * @param location The location of the include file
+     */
+    public static void invalidate(ResourceLocation location) {
+        INCLUDES.remove(location);
+    }
+
+    /**
+     * Forgets the source of all includes read from resources. Dependencies and generated includes are kept,
+     * since programs that are not reloaded still depend on them.
+     */
+    public static void clear() {
+        INCLUDES.clear();
+    }
+
+    /**
+     * An imported GLSL file.
+     *
+     * @param location The location of the file
+     * @param source   The decoded source of the file
+     * @param hash     The hash of the source
+     */
+    public record Include(ResourceLocation location, String source, HashCode hash) {
+    }
+}
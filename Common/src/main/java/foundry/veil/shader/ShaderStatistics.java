@@ -0,0 +1,260 @@
+package foundry.veil.shader;
+
+import com.mojang.logging.LogUtils;
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Records how long each shader spends being read, preprocessed, compiled and linked.
+ * <p>
+ * Every measurement is emitted as a <code>veil.ShaderPhase</code> JFR event and added to a report that is logged
+ * after every shader reload. Files are measured on their own until a program using them is linked, after which the
+ * report lists them as part of that program. The number of programs listed in the report can be changed with
+ * <code>-Dveil.shaderReportSize=&lt;count&gt;</code> and setting it to 0 disables the report.
+ */
+public final class ShaderStatistics {
+
+    private static final Logger LOGGER = LogUtils.getLogger();
+    private static final int REPORT_SIZE = Integer.getInteger("veil.shaderReportSize", 10);
+    private static final Map<String, Timings> PROGRAMS = new ConcurrentHashMap<>();
+    private static final Map<String, Set<String>> FILES = new ConcurrentHashMap<>();
+
+    private ShaderStatistics() {
+    }
+
+    /**
+     * Starts timing a phase of loading a program. Timers may be used from any thread.
+     *
+     * @param program The name of the program or file being loaded
+     * @param phase   The phase being timed
+     * @return A timer to end once the phase is complete
+     */
+    public static Timer start(String program, Phase phase) {
+        return new Timer(program, phase);
+    }
+
+    /**
+     * Attributes the measurements of source files to a program, so the report lists the total time of the program.
+     *
+     * @param program The name of the program
+     * @param files   The names the files of the program were measured with
+     */
+    public static void addFiles(String program, Collection<String> files) {
+        FILES.computeIfAbsent(program, __ -> ConcurrentHashMap.newKeySet()).addAll(files);
+    }
+
+    /**
+     * Forgets all previous measurements.
+     */
+    public static void reset() {
+        PROGRAMS.clear();
+        FILES.clear();
+    }
+
+    /**
+     * Logs the totals of all measurements since the last reset and the programs that took the longest to load.
+     */
+    public static void logReport() {
+        if (REPORT_SIZE <= 0 || PROGRAMS.isEmpty()) {
+            return;
+        }
+
+        long[] totals = new long[Phase.values().length];
+        long sourceSize = 0;
+        int includes = 0;
+        List<Map.Entry<String, Timings>> programs = new ArrayList<>(PROGRAMS.entrySet());
+        for (Map.Entry<String, Timings> entry : programs) {
+            Timings timings = entry.getValue();
+            synchronized (timings) {
+                for (int i = 0; i < totals.length; i++) {
+                    totals[i] += timings.nanos[i];
+                }
+                sourceSize += timings.sourceSize;
+                includes += timings.includes;
+            }
+        }
+
+        StringBuilder report = new StringBuilder();
+        report.append(String.format(Locale.ROOT, "Loaded %d shader programs and files (%s), %d KB of source, %d includes, %d program binary cache hits and %d misses",
+                programs.size(), formatPhases(totals), sourceSize / 1024L, includes, ProgramBinaryCache.getHits(), ProgramBinaryCache.getMisses()));
+
+        // Files used by a program are only listed as part of it
+        Set<String> attributed = new HashSet<>();
+        FILES.values().forEach(attributed::addAll);
+        Set<String> names = new HashSet<>(PROGRAMS.keySet());
+        names.addAll(FILES.keySet());
+        List<Map.Entry<String, Timings>> rows = new ArrayList<>();
+        for (String name : names) {
+            if (attributed.contains(name) && !FILES.containsKey(name)) {
+                continue;
+            }
+
+            Timings row = new Timings();
+            row.add(PROGRAMS.get(name));
+            for (String file : FILES.getOrDefault(name, Set.of())) {
+                if (!file.equals(name)) {
+                    row.add(PROGRAMS.get(file));
+                }
+            }
+            rows.add(Map.entry(name, row));
+        }
+
+        rows.sort(Comparator.comparingLong((Map.Entry<String, Timings> entry) -> entry.getValue().getTotal()).reversed());
+        report.append("\nSlowest:");
+        for (int i = 0; i < Math.min(REPORT_SIZE, rows.size()); i++) {
+            Map.Entry<String, Timings> entry = rows.get(i);
+            Timings timings = entry.getValue();
+            report.append(String.format(Locale.ROOT, "\n  %s: %.2fms (%s), %d bytes, %d includes", entry.getKey(), timings.getTotal() / 1_000_000.0, formatPhases(timings.nanos), timings.sourceSize, timings.includes));
+        }
+        LOGGER.info(report.toString());
+    }
+
+    private static String formatPhases(long[] nanos) {
+        StringBuilder builder = new StringBuilder();
+        for (Phase phase : Phase.values()) {
+            if (nanos[phase.ordinal()] == 0) {
+                continue;
+            }
+            if (!builder.isEmpty()) {
+                builder.append(", ");
+            }
+            builder.append(phase.getName()).append(String.format(Locale.ROOT, " %.2fms", nanos[phase.ordinal()] / 1_000_000.0));
+        }
+        return builder.toString();
+    }
+
+    /**
+     * A step in loading a shader.
+     */
+    public enum Phase {
+        READ("read"),
+        PREPROCESS("preprocess"),
+        COMPILE("compile"),
+        LINK("link"),
+        /**
+         * Loading an entire post chain, including all of its effects.
+         */
+        LOAD("load");
+
+        private final String name;
+
+        Phase(String name) {
+            this.name = name;
+        }
+
+        public String getName() {
+            return this.name;
+        }
+    }
+
+    /**
+     * Measures a single phase. Call {@link #end()} or {@link #end(int, int)} when the phase is complete.
+     */
+    public static final class Timer {
+
+        private final String program;
+        private final Phase phase;
+        private final PhaseEvent event;
+        private final long start;
+
+        private Timer(String program, Phase phase) {
+            this.program = program;
+            this.phase = phase;
+            this.event = new PhaseEvent();
+            this.event.begin();
+            this.start = System.nanoTime();
+        }
+
+        public void end() {
+            this.end(0, 0);
+        }
+
+        /**
+         * @param sourceSize The size of the source handled in this phase in characters
+         * @param includes   The number of files included in this phase
+         */
+        public void end(int sourceSize, int includes) {
+            long duration = System.nanoTime() - this.start;
+            this.event.end();
+            if (this.event.shouldCommit()) {
+                this.event.program = this.program;
+                this.event.phase = this.phase.getName();
+                this.event.sourceSize = sourceSize;
+                this.event.includes = includes;
+                this.event.commit();
+            }
+
+            Timings timings = PROGRAMS.computeIfAbsent(this.program, __ -> new Timings());
+            synchronized (timings) {
+                timings.nanos[this.phase.ordinal()] += duration;
+                timings.sourceSize = Math.max(timings.sourceSize, sourceSize);
+                timings.includes = Math.max(timings.includes, includes);
+            }
+        }
+    }
+
+    private static class Timings {
+
+        private final long[] nanos = new long[Phase.values().length];
+        private int sourceSize;
+        private int includes;
+
+        private void add(@Nullable Timings other) {
+            if (other == null) {
+                return;
+            }
+
+            synchronized (other) {
+                for (int i = 0; i < this.nanos.length; i++) {
+                    this.nanos[i] += other.nanos[i];
+                }
+                this.sourceSize += other.sourceSize;
+                this.includes += other.includes;
+            }
+        }
+
+        private long getTotal() {
+            long total = 0;
+            for (long value : this.nanos) {
+                total += value;
+            }
+            return total;
+        }
+    }
+
+    @Name("veil.ShaderPhase")
+    @Label("Shader Phase")
+    @Category({"Veil", "Shaders"})
+    @Description("A step in loading a shader program")
+    public static class PhaseEvent extends Event {
+
+        @Label("Program")
+        String program;
+
+        @Label("Phase")
+        String phase;
+
+        @Label("Source Size")
+        @DataAmount(DataAmount.BYTES)
+        long sourceSize;
+
+        @Label("Includes")
+        int includes;
+    }
+}
@@ -0,0 +1,167 @@
+package foundry.veil.shader;
+
+import com.mojang.blaze3d.systems.RenderSystem;
+import com.mojang.math.Matrix4f;
+import com.mojang.math.Vector3f;
+import net.minecraft.client.Camera;
+import net.minecraft.client.Minecraft;
+import net.minecraft.client.renderer.GameRenderer;
+import net.minecraft.world.phys.Vec3;
+import org.lwjgl.system.MemoryUtil;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+
+import static org.lwjgl.opengl.GL31C.*;
+
+/**
+ * Camera and time uniforms shared by every shader, computed once per frame and uploaded to a <code>std140</code>
+ * uniform buffer bound to {@link #BINDING}.
+ * <p>
+ * Shaders declare the block by importing <code>veil:frame_uniforms</code>. Every program is pointed at the binding
+ * when it is linked, so nothing has to be set per program or per frame.
+ */
+public final class VeilFrameUniforms {
+
+    /**
+     * The name of the uniform block.
+     */
+    public static final String BLOCK_NAME = "VeilFrameUniforms";
+    /**
+     * The uniform buffer binding point the block is bound to.
+     */
+    public static final int BINDING = 1;
+
+    // Four matrices, four vec3 with a float packed into each, then the time padded to 16 bytes
+    private static final int SIZE = 4 * 64 + 4 * 16 + 16;
+    private static final int VECTORS_OFFSET = 4 * 64;
+    private static final int TIME_OFFSET = VECTORS_OFFSET + 4 * 16;
+
+    private static final Matrix4f VIEW = new Matrix4f();
+    private static final Matrix4f PROJECTION = new Matrix4f();
+    private static final Matrix4f INV_VIEW = new Matrix4f();
+    private static final Matrix4f INV_PROJECTION = new Matrix4f();
+    private static final Matrix4f VIEW_PROJECTION = new Matrix4f();
+
+    private static int buffer;
+    private static ByteBuffer data;
+    private static FloatBuffer[] matrices;
+    private static float fov;
+    private static float time;
+
+    private VeilFrameUniforms() {
+    }
+
+    /**
+     * Computes the uniforms for this frame and uploads them.
+     *
+     * @param view         The view rotation of the level, the pose of the level pose stack
+     * @param projection   The projection matrix of the level
+     * @param camera       The camera the level is rendered from
+     * @param partialTicks The partial ticks of this frame
+     */
+    public static void update(Matrix4f view, Matrix4f projection, Camera camera, float partialTicks) {
+        RenderSystem.assertOnRenderThread();
+        if (buffer == 0) {
+            buffer = glGenBuffers();
+            glBindBuffer(GL_UNIFORM_BUFFER, buffer);
+            glBufferData(GL_UNIFORM_BUFFER, SIZE, GL_DYNAMIC_DRAW);
+            glBindBuffer(GL_UNIFORM_BUFFER, 0);
+
+            data = MemoryUtil.memCalloc(SIZE);
+            // Matrix4f#store writes to absolute indices, so every matrix needs its own view
+            matrices = new FloatBuffer[4];
+            for (int i = 0; i < matrices.length; i++) {
+                matrices[i] = MemoryUtil.memFloatBuffer(MemoryUtil.memAddress(data) + i * 64L, 16);
+            }
+        }
+
+        Minecraft client = Minecraft.getInstance();
+        VIEW.load(view);
+        PROJECTION.load(projection);
+        INV_VIEW.load(view);
+        INV_VIEW.invert();
+        INV_PROJECTION.load(projection);
+        INV_PROJECTION.invert();
+        VIEW_PROJECTION.load(projection);
+        VIEW_PROJECTION.multiply(view);
+        fov = (float) Math.toRadians(client.gameRenderer.getFov(camera, partialTicks, true));
+        time += client.getDeltaFrameTime() / 20F;
+
+        VIEW.store(matrices[0]);
+        PROJECTION.store(matrices[1]);
+        INV_VIEW.store(matrices[2]);
+        INV_PROJECTION.store(matrices[3]);
+
+        long address = MemoryUtil.memAddress(data) + VECTORS_OFFSET;
+        Vec3 position = camera.getPosition();
+        putVec3(address, (float) position.x, (float) position.y, (float) position.z, GameRenderer.PROJECTION_Z_NEAR);
+        putVec3(address + 16, camera.getLookVector(), client.gameRenderer.getDepthFar());
+        putVec3(address + 32, camera.getUpVector(), fov);
+        putVec3(address + 48, camera.getLeftVector(), (float) client.getWindow().getWidth() / (float) client.getWindow().getHeight());
+        MemoryUtil.memPutFloat(MemoryUtil.memAddress(data) + TIME_OFFSET, time);
+
+        glBindBuffer(GL_UNIFORM_BUFFER, buffer);
+        glBufferSubData(GL_UNIFORM_BUFFER, 0, data);
+        glBindBuffer(GL_UNIFORM_BUFFER, 0);
+        glBindBufferBase(GL_UNIFORM_BUFFER, BINDING, buffer);
+    }
+
+    /**
+     * Points the block of the specified program at {@link #BINDING}, if the program declares it.
+     *
+     * @param program The id of the linked program
+     */
+    public static void bind(int program) {
+        int index = glGetUniformBlockIndex(program, BLOCK_NAME);
+        if (index != GL_INVALID_INDEX) {
+            glUniformBlockBinding(program, index, BINDING);
+        }
+    }
+
+    /**
+     * @return The projection matrix of this frame multiplied by the view rotation, which transforms positions relative to the camera to clip space
+     */
+    public static Matrix4f getViewProjectionMatrix() {
+        return VIEW_PROJECTION;
+    }
+
+    /**
+     * @return The inverse of the view rotation of this frame
+     */
+    public static Matrix4f getInvViewMatrix() {
+        return INV_VIEW;
+    }
+
+    /**
+     * @return The inverse of the projection matrix of this frame
+     */
+    public static Matrix4f getInvProjectionMatrix() {
+        return INV_PROJECTION;
+    }
+
+    /**
+     * @return The field of view of this frame in radians
+     */
+    public static float getFov() {
+        return fov;
+    }
+
+    /**
+     * @return The time since the first frame in seconds
+     */
+    public static float getTime() {
+        return time;
+    }
+
+    private static void putVec3(long address, Vector3f vector, float w) {
+        putVec3(address, vector.x(), vector.y(), vector.z(), w);
+    }
+
+    private static void putVec3(long address, float x, float y, float z, float w) {
+        MemoryUtil.memPutFloat(address, x);
+        MemoryUtil.memPutFloat(address + 4, y);
+        MemoryUtil.memPutFloat(address + 8, z);
+        MemoryUtil.memPutFloat(address + 12, w);
+    }
+}
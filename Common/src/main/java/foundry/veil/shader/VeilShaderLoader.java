@@ -1,29 +1,58 @@
 package foundry.veil.shader;
 
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
 import com.mojang.blaze3d.platform.GlStateManager;
 import com.mojang.blaze3d.preprocessor.GlslPreprocessor;
+import com.mojang.blaze3d.shaders.EffectProgram;
 import com.mojang.blaze3d.shaders.Program;
 import com.mojang.blaze3d.systems.RenderSystem;
+import com.mojang.datafixers.util.Pair;
 import com.mojang.logging.LogUtils;
 import foundry.veil.mixin.client.shader.ProgramAccessor;
 import it.unimi.dsi.fastutil.ints.Int2ObjectArrayMap;
+import it.unimi.dsi.fastutil.ints.Int2ObjectMap;
+import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
 import net.minecraft.FileUtil;
 import net.minecraft.resources.ResourceLocation;
 import net.minecraft.server.packs.resources.Resource;
+import net.minecraft.server.packs.resources.ResourceManager;
 import net.minecraft.server.packs.resources.ResourceProvider;
+import net.minecraft.util.GsonHelper;
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.jetbrains.annotations.Nullable;
+import org.lwjgl.opengl.ARBParallelShaderCompile;
+import org.lwjgl.opengl.GL;
+import org.lwjgl.opengl.GLCapabilities;
+import org.lwjgl.opengl.KHRParallelShaderCompile;
 import org.slf4j.Logger;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.Reader;
+import java.io.InvalidClassException;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.function.BooleanSupplier;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import static org.lwjgl.opengl.GL43C.*;
 
@@ -35,6 +64,7 @@ import static org.lwjgl.opengl.GL43C.*;
 public final class VeilShaderLoader {
 
     private static final Logger LOGGER = LogUtils.getLogger();
+    private static final char VARIANT_SEPARATOR = '#';
     private static final Map<Integer, Map<String, Program>> PROGRAMS = new Int2ObjectArrayMap<>(2);
     private static final Map<Integer, String> TYPES = Map.of(
             GL_VERTEX_SHADER, "vertex",
@@ -52,6 +82,17 @@ public final class VeilShaderLoader {
             GL_FRAGMENT_SHADER, Program.Type.FRAGMENT.getExtension(),
             GL_COMPUTE_SHADER, ".csh"
     );
+    private static final Map<ResourceLocation, PreparedShader> PREPARED = new ConcurrentHashMap<>();
+    private static final Map<Integer, Set<String>> PENDING = new Int2ObjectArrayMap<>(2);
+    private static final int MAX_VARIANTS = Integer.getInteger("veil.maxShaderVariants", 64);
+    // Access ordered, so the first entry is always the least recently used
+    private static final Map<Variant, Program> VARIANTS = new LinkedHashMap<>(16, 0.75F, true);
+    private static final Map<Stage, SharedStage> STAGES = new HashMap<>();
+    private static final Int2ObjectMap<Stage> STAGE_IDS = new Int2ObjectOpenHashMap<>();
+    private static final Pattern VERSION_PATTERN = Pattern.compile("^\\s*#version[^\\n]*\\n?", Pattern.MULTILINE);
+    private static final List<Pair<BooleanSupplier, Runnable>> TASKS = new LinkedList<>();
+    private static ResourceProvider preparedProvider;
+    private static Boolean parallelCompile;
 
     private VeilShaderLoader() {
     }
@@ -67,6 +108,9 @@ public final class VeilShaderLoader {
      */
     @Nullable
     public static Program getProgram(int type, String name) {
+        if (name.indexOf(VARIANT_SEPARATOR) != -1) {
+            return VARIANTS.get(new Variant(type, name));
+        }
         if (type == GL_VERTEX_SHADER) {
             return Program.Type.VERTEX.getPrograms().get(name);
         }
@@ -83,6 +127,18 @@ public final class VeilShaderLoader {
      * @param name The name of the program
      */
     public static void removeProgram(int type, String name) {
+        if (name.indexOf(VARIANT_SEPARATOR) != -1) {
+            VARIANTS.remove(new Variant(type, name));
+            return;
+        }
+        if (type == GL_VERTEX_SHADER) {
+            Program.Type.VERTEX.getPrograms().remove(name);
+            return;
+        }
+        if (type == GL_FRAGMENT_SHADER) {
+            Program.Type.FRAGMENT.getPrograms().remove(name);
+            return;
+        }
         if (!PROGRAMS.containsKey(type)) {
             return;
         }
@@ -121,27 +177,165 @@ public final class VeilShaderLoader {
      * @return A new Glsl preprocessor
      */
     public static GlslPreprocessor createPreprocessor(ResourceProvider resourceProvider, ResourceLocation location) {
-        String absolutePath = FileUtil.getFullResourcePath(location.getPath()); // TODO make sure this absolute path is correct
+        return new ImportPreprocessor(resourceProvider, location);
+    }
+
+    /**
+     * Reads and preprocesses every shader in <code>shaders/core</code> in parallel. Shaders loaded from the same provider
+     * afterwards use the prepared source instead of reading and preprocessing on the render thread.
+     *
+     * @param resourceManager The manager to load resources from
+     * @param executor        The executor to read and preprocess sources on
+     * @return A future for when all shaders have been prepared
+     */
+    public static CompletableFuture<Void> prepare(ResourceManager resourceManager, Executor executor) {
+        PREPARED.clear();
+        ShaderIncludeCache.clear();
+        ShaderStatistics.reset();
+        preparedProvider = resourceManager;
+        return CompletableFuture.supplyAsync(() -> resourceManager.listResources("shaders/core", location -> EXTENSIONS.values().stream().anyMatch(location.getPath()::endsWith)), executor)
+                .thenCompose(resources -> CompletableFuture.allOf(resources.entrySet().stream()
+                        .map(entry -> CompletableFuture.runAsync(() -> prepare(resourceManager, entry.getKey(), entry.getValue()), executor))
+                        .toArray(CompletableFuture[]::new)));
+    }
+
+    private static void prepare(ResourceProvider resourceProvider, ResourceLocation location, Resource resource) {
+        try {
+            PREPARED.put(location, load(resourceProvider, location, resource));
+        } catch (Exception e) {
+            // The shader will be loaded again on the render thread, which reports the error properly
+            LOGGER.debug("Failed to prepare shader {}: {}", location, e.getMessage());
+        }
+    }
+
+    /**
+     * Releases all sources loaded by {@link #prepare(ResourceManager, Executor)}.
+     */
+    public static void clearPrepared() {
+        PREPARED.clear();
+        preparedProvider = null;
+    }
+
+    /**
+     * Retrieves the prepared source for the specified shader or loads it if it was not prepared.
+     *
+     * @param resourceProvider The provider for resources
+     * @param location         The location of the shader file
+     * @return The fully preprocessed shader
+     * @throws IOException If the shader had to be loaded and an error occurred
+     */
+    public static PreparedShader getPrepared(ResourceProvider resourceProvider, ResourceLocation location) throws IOException {
+        PreparedShader shader = resourceProvider == preparedProvider ? PREPARED.get(location) : null;
+        return shader != null ? shader : load(resourceProvider, location, resourceProvider.getResourceOrThrow(location));
+    }
+
+    /**
+     * Creates a preprocessor that skips preprocessing if the specified shader was already prepared.
+     *
+     * @param resourceProvider The provider for resources
+     * @param location         The location of the shader file
+     * @param fallback         The preprocessor to use if the shader was not prepared
+     * @return A preprocessor for the shader
+     */
+    public static GlslPreprocessor getPreparedPreprocessor(ResourceProvider resourceProvider, ResourceLocation location, GlslPreprocessor fallback) {
+        PreparedShader shader = resourceProvider == preparedProvider ? PREPARED.get(location) : null;
+        return shader != null ? createPreparedPreprocessor(shader) : fallback;
+    }
+
+    private static GlslPreprocessor createPreparedPreprocessor(PreparedShader shader) {
         return new GlslPreprocessor() {
-            private final Set<String> importedPaths = new HashSet<>();
+            @Override
+            public List<String> process(String source) {
+                return shader.source();
+            }
 
+            @Nullable
             @Override
             public String applyImport(boolean absolute, String path) {
-                path = FileUtil.normalizeResourcePath((absolute ? absolutePath : "shaders/include/") + path);
-                if (!this.importedPaths.add(path)) {
-                    return null;
-                }
-
-                try (Reader reader = resourceProvider.openAsReader(new ResourceLocation(location.getNamespace(), path))) {
-                    return IOUtils.toString(reader);
-                } catch (IOException var9) {
-                    LOGGER.error("Could not open GLSL import {}: {}", path, var9.getMessage());
-                    return "#error " + var9.getMessage();
-                }
+                return null;
             }
         };
     }
 
+    /**
+     * Retrieves the prepared source for the specified shader with the defines of the variant inserted.
+     *
+     * @param resourceProvider The provider for resources
+     * @param type             The type of shader
+     * @param name             The name of the program, which may be a variant
+     * @return The fully preprocessed shader
+     * @throws IOException If the shader had to be loaded and an error occurred
+     */
+    private static PreparedShader getPreparedVariant(ResourceProvider resourceProvider, int type, String name) throws IOException {
+        PreparedShader shader = getPrepared(resourceProvider, getLocation(type, name));
+        int separator = name.indexOf(VARIANT_SEPARATOR);
+        if (separator == -1) {
+            return shader;
+        }
+
+        List<String> source = injectDefines(shader.source(), List.of(name.substring(separator + 1).split(",")));
+        return new PreparedShader(shader.location(), shader.sourcePackId(), source, Hashing.sha256().hashString(String.join("", source), StandardCharsets.UTF_8));
+    }
+
+    private static PreparedShader load(ResourceProvider resourceProvider, ResourceLocation location, Resource resource) throws IOException {
+        String source;
+        ShaderStatistics.Timer readTimer = ShaderStatistics.start(location.toString(), ShaderStatistics.Phase.READ);
+        try (InputStream stream = resource.open()) {
+            source = IOUtils.toString(stream, StandardCharsets.UTF_8);
+            if (source == null) {
+                throw new IOException("Could not load program " + location);
+            }
+        }
+        readTimer.end(source.length(), 0);
+
+        ShaderStatistics.Timer preprocessTimer = ShaderStatistics.start(location.toString(), ShaderStatistics.Phase.PREPROCESS);
+        ImportPreprocessor preprocessor = new ImportPreprocessor(resourceProvider, location);
+        List<String> processed = preprocessor.process(source);
+        String joined = String.join("", processed);
+        HashCode hash = Hashing.sha256().hashString(joined, StandardCharsets.UTF_8);
+        preprocessTimer.end(joined.length(), preprocessor.importedPaths.size());
+        return new PreparedShader(location, resource.sourcePackId(), processed, hash);
+    }
+
+    /**
+     * Retrieves the location of the source file for a core shader program.
+     *
+     * @param type The type of shader
+     * @param name The name of the program, which may be a variant
+     * @return The location of the source file
+     */
+    public static ResourceLocation getLocation(int type, String name) {
+        ResourceLocation id = new ResourceLocation(getBaseName(name));
+        return new ResourceLocation(id.getNamespace(), "shaders/core/" + id.getPath() + getTypeExtension(type));
+    }
+
+    /**
+     * Retrieves the names {@link ShaderStatistics} measured the files of a stage with.
+     *
+     * @param type The type of shader
+     * @param name The name of the program, which may be a variant
+     * @return The names of the measurements
+     */
+    public static List<String> getStatisticsNames(int type, String name) {
+        if (name.indexOf(VARIANT_SEPARATOR) == -1) {
+            return List.of(getLocation(type, name).toString());
+        }
+        return List.of(name, getLocation(type, name).toString());
+    }
+
+    /**
+     * Retrieves the location of the source file for a post effect program.
+     * Depending on the loader the name is either the full path of the file or just the name of the program.
+     *
+     * @param type The type of shader
+     * @param name The name of the program, which may be a variant
+     * @return The location of the source file
+     */
+    public static ResourceLocation getEffectLocation(Program.Type type, String name) {
+        ResourceLocation id = new ResourceLocation(getBaseName(name));
+        return id.getPath().startsWith("shaders/") ? id : new ResourceLocation(id.getNamespace(), "shaders/program/" + id.getPath() + type.getExtension());
+    }
+
     /**
      * Loads and compiles shader source for the specified shader.
      *
@@ -152,25 +346,301 @@ public final class VeilShaderLoader {
      */
     public static void compile(ResourceProvider resourceProvider, int shaderId, int type, String name) throws IOException {
         RenderSystem.assertOnRenderThread();
-        ResourceLocation id = new ResourceLocation(name);
-        ResourceLocation location = new ResourceLocation(id.getNamespace(), "shaders/core/" + id.getPath() + getTypeExtension(type));
-        Resource resource = resourceProvider.getResourceOrThrow(location);
+        PreparedShader shader = getPreparedVariant(resourceProvider, type, name);
+        ShaderStatistics.Timer timer = ShaderStatistics.start(shader.location().toString(), ShaderStatistics.Phase.COMPILE);
+        GlStateManager.glShaderSource(shaderId, shader.source());
+        GlStateManager.glCompileShader(shaderId);
+        checkCompileStatus(shaderId, type, name, shader.sourcePackId());
+        timer.end();
+    }
 
-        try (InputStream stream = resource.open()) {
-            String source = IOUtils.toString(stream, StandardCharsets.UTF_8);
-            if (source == null) {
-                throw new IOException("Could not load program " + getTypeName(type));
+    /**
+     * Uploads and starts compiling shader source for the specified shader without waiting for the result.
+     * {@link #checkCompileStatus(int, int, String, String)} must be called to find out if compilation succeeded.
+     *
+     * @param resourceProvider The provider for resources
+     * @param type             The type of shader to compile
+     * @param name             The name of the shader to compile
+     * @return The source that was submitted
+     * @throws IOException If the shader source could not be loaded
+     */
+    public static PreparedShader submit(ResourceProvider resourceProvider, int shaderId, int type, String name) throws IOException {
+        RenderSystem.assertOnRenderThread();
+        PreparedShader shader = getPreparedVariant(resourceProvider, type, name);
+        GlStateManager.glShaderSource(shaderId, shader.source());
+        GlStateManager.glCompileShader(shaderId);
+        return shader;
+    }
+
+    /**
+     * Uploads and starts compiling new source for the specified program without waiting for the result.
+     * Stage objects shared with other programs are never modified. Instead, the program is moved to the
+     * stage object matching its new source, which may not need to be compiled at all.
+     *
+     * @param resourceProvider The provider for resources
+     * @param program          The program to recompile
+     * @param type             The type of shader to compile
+     * @return The source that was submitted
+     * @throws IOException If the shader source could not be loaded
+     */
+    public static PreparedShader submit(ResourceProvider resourceProvider, Program program, int type) throws IOException {
+        Stage oldStage = STAGE_IDS.get(((ProgramAccessor) program).getId());
+        if (oldStage == null) {
+            return submit(resourceProvider, ((ProgramAccessor) program).getId(), type, program.getName());
+        }
+
+        RenderSystem.assertOnRenderThread();
+        PreparedShader shader = getPreparedVariant(resourceProvider, type, program.getName());
+        int shaderId = acquireStage(type, shader.source(), shader.hash());
+        releaseStage(oldStage.type(), oldStage.hash());
+        ((ProgramAccessor) program).setId(shaderId);
+        if (program instanceof VeilProgram veilProgram) {
+            veilProgram.hash = shader.hash();
+        }
+        return shader;
+    }
+
+    /**
+     * Compiles the specified source, or reuses the shader object of another program with identical source.
+     * Used for every vanilla {@link Program} and post effect program, the shader object must be released with
+     * {@link #releaseShared(int)} instead of being deleted.
+     *
+     * @param type         The type of shader
+     * @param source       The preprocessed source of the shader
+     * @param name         The name of the shader
+     * @param sourcePackId The pack the source was loaded from
+     * @return The id of the compiled shader object
+     * @throws IOException If the shader failed to compile
+     */
+    public static int compileShared(int type, List<String> source, String name, String sourcePackId) throws IOException {
+        HashCode hash = Hashing.sha256().hashString(String.join("", source), StandardCharsets.UTF_8);
+        int shaderId = acquireStage(type, source, hash);
+        if (shaderId == 0) {
+            throw new IOException("Couldn't create " + getTypeName(type) + " program (" + sourcePackId + ", " + name + ")");
+        }
+        try {
+            checkCompileStatus(shaderId, type, name, sourcePackId);
+        } catch (IOException e) {
+            releaseStage(type, hash);
+            throw e;
+        }
+        return shaderId;
+    }
+
+    /**
+     * Releases a shader object created with {@link #compileShared(int, List, String, String)}, or deletes it if it isn't shared.
+     *
+     * @param shaderId The id of the shader object
+     */
+    public static void releaseShared(int shaderId) {
+        Stage stage = STAGE_IDS.get(shaderId);
+        if (stage != null) {
+            releaseStage(stage.type(), stage.hash());
+        } else {
+            GlStateManager.glDeleteShader(shaderId);
+        }
+    }
+
+    /**
+     * Retrieves the shader object compiled from the specified source, or creates and starts compiling a new one.
+     * Each call must be matched with a call to {@link #releaseStage(int, HashCode)}.
+     *
+     * @param type   The type of shader
+     * @param source The preprocessed source of the shader
+     * @param hash   The hash of the source
+     * @return The id of the shader object or <code>0</code> if the type is not supported
+     */
+    private static int acquireStage(int type, List<String> source, HashCode hash) {
+        RenderSystem.assertOnRenderThread();
+        Stage key = new Stage(type, hash);
+        SharedStage stage = STAGES.get(key);
+        if (stage == null) {
+            int shaderId = GlStateManager.glCreateShader(type);
+            if (shaderId == 0) {
+                return 0;
             }
 
-            GlStateManager.glShaderSource(shaderId, createPreprocessor(resourceProvider, location).process(source));
+            GlStateManager.glShaderSource(shaderId, source);
             GlStateManager.glCompileShader(shaderId);
-            if (GlStateManager.glGetShaderi(shaderId, 35713) == 0) {
-                String error = StringUtils.trim(GlStateManager.glGetShaderInfoLog(shaderId, 32768));
-                throw new IOException("Couldn't compile " + getTypeName(type) + " program (" + resource.sourcePackId() + ", " + name + ") : " + error);
+            stage = new SharedStage(shaderId);
+            STAGES.put(key, stage);
+            STAGE_IDS.put(shaderId, key);
+        } else {
+            LOGGER.debug("Reusing identical {} shader {}", getTypeName(type), stage.id);
+        }
+        stage.references++;
+        return stage.id;
+    }
+
+    /**
+     * Releases a shader object retrieved with {@link #acquireStage(int, List, HashCode)}. It is deleted once nothing uses it.
+     *
+     * @param type The type of shader
+     * @param hash The hash of the source
+     */
+    private static void releaseStage(int type, HashCode hash) {
+        RenderSystem.assertOnRenderThread();
+        Stage key = new Stage(type, hash);
+        SharedStage stage = STAGES.get(key);
+        if (stage != null && --stage.references <= 0) {
+            STAGES.remove(key);
+            STAGE_IDS.remove(stage.id);
+            GlStateManager.glDeleteShader(stage.id);
+        }
+    }
+
+    /**
+     * Checks if a submitted shader compiled successfully. This blocks until the driver has finished compiling.
+     *
+     * @param shaderId     The id of the shader to check
+     * @param type         The type of shader
+     * @param name         The name of the shader
+     * @param sourcePackId The pack the source was loaded from
+     * @throws IOException If the shader failed to compile
+     */
+    public static void checkCompileStatus(int shaderId, int type, String name, String sourcePackId) throws IOException {
+        if (GlStateManager.glGetShaderi(shaderId, GL_COMPILE_STATUS) == 0) {
+            String error = StringUtils.trim(GlStateManager.glGetShaderInfoLog(shaderId, 32768));
+            throw new IOException("Couldn't compile " + getTypeName(type) + " program (" + sourcePackId + ", " + name + ") : " + error);
+        }
+    }
+
+    /**
+     * Enables <code>KHR_parallel_shader_compile</code> or <code>ARB_parallel_shader_compile</code> if available.
+     *
+     * @return Whether the driver can compile and link shaders in the background
+     */
+    public static boolean isParallelCompileSupported() {
+        if (parallelCompile == null) {
+            RenderSystem.assertOnRenderThread();
+            GLCapabilities caps = GL.getCapabilities();
+            if (caps.GL_KHR_parallel_shader_compile) {
+                KHRParallelShaderCompile.glMaxShaderCompilerThreadsKHR(0xFFFFFFFF);
+                parallelCompile = true;
+            } else if (caps.GL_ARB_parallel_shader_compile) {
+                ARBParallelShaderCompile.glMaxShaderCompilerThreadsARB(0xFFFFFFFF);
+                parallelCompile = true;
+            } else {
+                parallelCompile = false;
+            }
+        }
+        return parallelCompile;
+    }
+
+    /**
+     * Checks if the driver has finished linking the specified program without blocking.
+     *
+     * @param programId The id of the program to check
+     * @return Whether querying the link status will return immediately
+     */
+    public static boolean isLinkComplete(int programId) {
+        return !isParallelCompileSupported() || GlStateManager.glGetProgrami(programId, KHRParallelShaderCompile.GL_COMPLETION_STATUS_KHR) != 0;
+    }
+
+    /**
+     * Submits every prepared shader to the driver at once so they can be compiled in parallel.
+     * The result of each is only checked when the program is first requested, which waits for the driver if it isn't done yet.
+     * Shaders compiled any other way are checked right after they are submitted, only hot reloads wait across frames,
+     * see {@link #isLinkComplete(int)}.
+     */
+    public static void submitPrepared() {
+        RenderSystem.assertOnRenderThread();
+        if (preparedProvider == null || !isParallelCompileSupported()) {
+            return;
+        }
+
+        for (PreparedShader shader : PREPARED.values()) {
+            ResourceLocation location = shader.location();
+            int type = getType(location);
+            String path = location.getPath().substring("shaders/core/".length(), location.getPath().length() - getTypeExtension(type).length());
+            String name = "minecraft".equals(location.getNamespace()) ? path : location.getNamespace() + ":" + path;
+            if (getProgram(type, name) != null) {
+                continue;
+            }
+
+            ShaderStatistics.Timer timer = ShaderStatistics.start(location.toString(), ShaderStatistics.Phase.COMPILE);
+            int shaderId = acquireStage(type, shader.source(), shader.hash());
+            timer.end();
+            if (shaderId == 0) {
+                continue; // Stage isn't supported by this context
             }
+
+            getPrograms(type).put(name, new VeilProgram(type, shaderId, name, shader.hash()));
+            PENDING.computeIfAbsent(type, __ -> new HashSet<>()).add(name);
         }
     }
 
+    /**
+     * Checks the result of a program submitted by {@link #submitPrepared()}, blocking until the driver has compiled it. Programs that failed are closed so they are compiled again by the caller, which reports the error.
+     *
+     * @param type The type of program
+     * @param name The name of the program
+     */
+    public static void finishPending(int type, String name) {
+        Set<String> pending = PENDING.get(type);
+        if (pending == null || !pending.remove(name)) {
+            return;
+        }
+
+        Program program = getProgram(type, name);
+        if (program == null) {
+            return;
+        }
+
+        // Waiting for the driver is part of compiling, the submission was timed by submitPrepared
+        ShaderStatistics.Timer timer = ShaderStatistics.start(getLocation(type, name).toString(), ShaderStatistics.Phase.COMPILE);
+        boolean failed = GlStateManager.glGetShaderi(((ProgramAccessor) program).getId(), GL_COMPILE_STATUS) == 0;
+        timer.end();
+        if (failed) {
+            program.close();
+        }
+    }
+
+    /**
+     * Schedules a task to run on the render thread once the specified condition is met. Conditions are checked once every frame.
+     *
+     * @param condition The condition to wait for
+     * @param task      The task to run
+     */
+    public static void schedule(BooleanSupplier condition, Runnable task) {
+        RenderSystem.assertOnRenderThread();
+        TASKS.add(Pair.of(condition, task));
+    }
+
+    /**
+     * Runs all scheduled tasks that are ready.
+     */
+    public static void poll() {
+        RenderSystem.assertOnRenderThread();
+        Iterator<Pair<BooleanSupplier, Runnable>> iterator = TASKS.iterator();
+        while (iterator.hasNext()) {
+            Pair<BooleanSupplier, Runnable> task = iterator.next();
+            if (task.getFirst().getAsBoolean()) {
+                iterator.remove();
+                task.getSecond().run();
+            }
+        }
+    }
+
+    private static int getType(ResourceLocation location) {
+        for (Map.Entry<Integer, String> entry : EXTENSIONS.entrySet()) {
+            if (location.getPath().endsWith(entry.getValue())) {
+                return entry.getKey();
+            }
+        }
+        return 0;
+    }
+
+    private static Map<String, Program> getPrograms(int type) {
+        if (type == GL_VERTEX_SHADER) {
+            return Program.Type.VERTEX.getPrograms();
+        }
+        if (type == GL_FRAGMENT_SHADER) {
+            return Program.Type.FRAGMENT.getPrograms();
+        }
+        return PROGRAMS.computeIfAbsent(type, __ -> new HashMap<>());
+    }
+
     /**
      * Attempts to re-use an existing shader before compiling a new one.
      *
@@ -181,52 +651,261 @@ public final class VeilShaderLoader {
      * @throws IOException If the shader had to be compiled and an error occurred
      */
     public static Program getOrCreate(ResourceProvider resourceProvider, int type, String name) throws IOException {
+        finishPending(type, name);
         Program cachedProgram = getProgram(type, name);
         if (cachedProgram != null) {
             return cachedProgram;
         }
 
         // Make sure vanilla types go through vanilla system
-        if (type == GL_VERTEX_SHADER || type == GL_FRAGMENT_SHADER) {
-            ResourceLocation id = new ResourceLocation(name);
-            ResourceLocation location = new ResourceLocation(id.getNamespace(), "shaders/core/" + id.getPath() + getTypeExtension(type));
-            Resource resource = resourceProvider.getResourceOrThrow(location);
+        PreparedShader shader = getPrepared(resourceProvider, getLocation(type, name));
+        // Only started once the cache missed, and always ended so a failed compile can't leave it running
+        ShaderStatistics.Timer timer = ShaderStatistics.start(shader.location().toString(), ShaderStatistics.Phase.COMPILE);
+        try {
+            if (type == GL_VERTEX_SHADER || type == GL_FRAGMENT_SHADER) {
+                // The source is already processed, so the stream is never read
+                return Program.compileShader(type == GL_VERTEX_SHADER ? Program.Type.VERTEX : Program.Type.FRAGMENT, name, InputStream.nullInputStream(), shader.sourcePackId(), createPreparedPreprocessor(shader));
+            }
 
-            try (InputStream stream = resource.open()) {
-                return Program.compileShader(type == GL_VERTEX_SHADER ? Program.Type.VERTEX : Program.Type.FRAGMENT, name, stream, resource.sourcePackId(), createPreprocessor(resourceProvider, location));
+            int shaderId = acquireStage(type, shader.source(), shader.hash());
+            try {
+                checkCompileStatus(shaderId, type, name, shader.sourcePackId());
+            } catch (IOException e) {
+                releaseStage(type, shader.hash());
+                throw e;
             }
+
+            Program program = new VeilProgram(type, shaderId, name, shader.hash());
+            getPrograms(type).put(name, program);
+            return program;
+        } finally {
+            timer.end();
+        }
+    }
+
+    /**
+     * Retrieves a variant of a shader with the specified defines, compiling it the first time it is requested.
+     * Defines are either a name like <code>HIGH_QUALITY</code> or a name and value like <code>SAMPLES=16</code>,
+     * and are inserted directly after the <code>#version</code> directive.
+     * <p>
+     * Only a limited number of variants are kept, configurable with <code>-Dveil.maxShaderVariants</code>.
+     * Once more are loaded, the variants that were requested least recently are closed. Programs that already
+     * linked a closed variant keep working, but the variant has to be compiled again the next time it is requested.
+     *
+     * @param resourceProvider The provider for resources
+     * @param type             The type of shader to compile
+     * @param name             The name of the shader to compile
+     * @param defines          The preprocessor definitions to compile the shader with
+     * @return A previously loaded variant or a newly loaded one
+     * @throws IOException If the variant had to be compiled and an error occurred
+     */
+    public static Program getOrCreateVariant(ResourceProvider resourceProvider, int type, String name, Collection<String> defines) throws IOException {
+        if (defines.isEmpty()) {
+            return getOrCreate(resourceProvider, type, name);
         }
 
-        int shaderId = GlStateManager.glCreateShader(type);
+        RenderSystem.assertOnRenderThread();
+        String variantName = getVariantName(name, defines);
+        Variant variant = new Variant(type, variantName);
+        Program cachedProgram = VARIANTS.get(variant);
+        if (cachedProgram != null) {
+            return cachedProgram;
+        }
+
+        PreparedShader shader = getPreparedVariant(resourceProvider, type, variantName);
+        HashCode hash = shader.hash();
+        ShaderStatistics.Timer timer = ShaderStatistics.start(variantName, ShaderStatistics.Phase.COMPILE);
+        int shaderId = acquireStage(type, shader.source(), hash);
         try {
-            compile(resourceProvider, shaderId, type, name);
+            checkCompileStatus(shaderId, type, variantName, shader.sourcePackId());
         } catch (IOException e) {
-            GlStateManager.glDeleteShader(shaderId);
+            releaseStage(type, hash);
             throw e;
+        } finally {
+            timer.end();
         }
 
-        Program program = new VeilProgram(type, shaderId, name);
-        PROGRAMS.computeIfAbsent(type, __ -> new HashMap<>()).put(name, program);
+        Program program = new VeilProgram(type, shaderId, variantName, hash);
+        VARIANTS.put(variant, program);
+
+        Iterator<Program> iterator = VARIANTS.values().iterator();
+        while (VARIANTS.size() > MAX_VARIANTS && iterator.hasNext()) {
+            Program eldest = iterator.next();
+            iterator.remove();
+            eldest.close();
+        }
         return program;
     }
 
+    /**
+     * Retrieves a variant of a post effect program with the specified defines, compiling it the first time it is requested.
+     * The variant is kept until every effect using it has been closed, just like any other effect program.
+     *
+     * @param resourceManager The manager to load resources from
+     * @param type            The type of shader to compile
+     * @param name            The name of the effect program to compile
+     * @param defines         The preprocessor definitions to compile the shader with, see {@link #getOrCreateVariant(ResourceProvider, int, String, Collection)}
+     * @return A previously loaded variant or a newly loaded one
+     * @throws IOException If the variant had to be compiled and an error occurred
+     */
+    public static EffectProgram getOrCreateEffectVariant(ResourceManager resourceManager, Program.Type type, String name, Collection<String> defines) throws IOException {
+        RenderSystem.assertOnRenderThread();
+        String variantName = getVariantName(name, defines);
+        Program cachedProgram = type.getPrograms().get(variantName);
+        if (cachedProgram != null) {
+            if (!(cachedProgram instanceof EffectProgram effectProgram)) {
+                throw new InvalidClassException("Program is not of type EffectProgram");
+            }
+            return effectProgram;
+        }
+
+        Resource resource = resourceManager.getResourceOrThrow(getEffectLocation(type, name));
+        String source;
+        try (InputStream stream = resource.open()) {
+            source = IOUtils.toString(stream, StandardCharsets.UTF_8);
+        }
+        // Effect programs are preprocessed by vanilla, so the defines have to go into the raw source
+        String injected = String.join("", injectDefines(List.of(source), new TreeSet<>(defines)));
+        return EffectProgram.compileShader(type, variantName, new ByteArrayInputStream(injected.getBytes(StandardCharsets.UTF_8)), resource.sourcePackId());
+    }
+
+    /**
+     * Reads the optional <code>defines</code> array of a program definition.
+     *
+     * @param json The program definition
+     * @return The defines to compile every stage of the program with
+     */
+    public static List<String> getDefines(JsonObject json) {
+        JsonArray array = GsonHelper.getAsJsonArray(json, "defines", null);
+        if (array == null) {
+            return List.of();
+        }
+
+        List<String> defines = new ArrayList<>(array.size());
+        for (JsonElement element : array) {
+            defines.add(GsonHelper.convertToString(element, "define"));
+        }
+        return defines;
+    }
+
+    private static String getVariantName(String name, Collection<String> defines) {
+        return name + VARIANT_SEPARATOR + String.join(",", new TreeSet<>(defines));
+    }
+
+    private static String getBaseName(String name) {
+        int separator = name.indexOf(VARIANT_SEPARATOR);
+        return separator == -1 ? name : name.substring(0, separator);
+    }
+
+    private static List<String> injectDefines(List<String> source, Collection<String> defines) {
+        StringBuilder builder = new StringBuilder();
+        for (String define : defines) {
+            builder.append("#define ").append(define.replaceFirst("=", " ")).append('\n');
+        }
+
+        List<String> injected = new ArrayList<>(source);
+        for (int i = 0; i < injected.size(); i++) {
+            Matcher matcher = VERSION_PATTERN.matcher(injected.get(i));
+            if (matcher.find()) {
+                String chunk = injected.get(i);
+                String version = matcher.group();
+                injected.set(i, chunk.substring(0, matcher.end()) + (version.endsWith("\n") ? "" : "\n") + builder + chunk.substring(matcher.end()));
+                return injected;
+            }
+        }
+
+        // No version directive, so the defines can go first
+        injected.add(0, builder.toString());
+        return injected;
+    }
+
     /**
      * Closes all shader programs.
      */
     public static void free() {
         RenderSystem.assertOnRenderThread();
-        Set<Program> programs = new HashSet<>();
+        PENDING.clear();
+        Set<Program> programs = new HashSet<>(VARIANTS.values());
         PROGRAMS.values().forEach(map -> programs.addAll(map.values()));
         programs.forEach(Program::close); // This is because programs remove themselves from the map
     }
 
+    /**
+     * A shader source file that has been read and fully preprocessed.
+     *
+     * @param location     The location of the shader file
+     * @param sourcePackId The id of the pack the shader was loaded from
+     * @param source       The preprocessed source to upload
+     * @param hash         The hash of the preprocessed source
+     */
+    public record PreparedShader(ResourceLocation location, String sourcePackId, List<String> source, HashCode hash) {
+    }
+
+    private record Variant(int type, String name) {
+    }
+
+    private static class ImportPreprocessor extends GlslPreprocessor {
+
+        private final ResourceProvider resourceProvider;
+        private final ResourceLocation location;
+        private final String absolutePath;
+        private final Set<String> importedPaths;
+
+        private ImportPreprocessor(ResourceProvider resourceProvider, ResourceLocation location) {
+            this.resourceProvider = resourceProvider;
+            this.location = location;
+            this.absolutePath = FileUtil.getFullResourcePath(location.getPath()); // TODO make sure this absolute path is correct
+            this.importedPaths = new HashSet<>();
+        }
+
+        @Override
+        public String applyImport(boolean absolute, String path) {
+            path = FileUtil.normalizeResourcePath((absolute ? this.absolutePath : "shaders/include/") + path);
+            if (!this.importedPaths.add(path)) {
+                return null;
+            }
+
+            try {
+                return ShaderIncludeCache.getSource(this.resourceProvider, new ResourceLocation(this.location.getNamespace(), path), this.location);
+            } catch (IOException var9) {
+                LOGGER.error("Could not open GLSL import {}: {}", path, var9.getMessage());
+                return "#error " + var9.getMessage();
+            }
+        }
+    }
+
+    private record Stage(int type, HashCode hash) {
+    }
+
+    private static class SharedStage {
+
+        private final int id;
+        private int references;
+
+        private SharedStage(int id) {
+            this.id = id;
+        }
+    }
+
     public static class VeilProgram extends Program {
 
         private final int type;
+        private HashCode hash;
 
         public VeilProgram(int type, int id, String name) {
+            this(type, id, name, null);
+        }
+
+        /**
+         * @param type The type of shader
+         * @param id   The id of the shader object
+         * @param name The name of the program
+         * @param hash The hash of the source if the shader object is shared with other programs with the same source
+         */
+        public VeilProgram(int type, int id, String name, @Nullable HashCode hash) {
             super(Type.VERTEX, id, name);
             this.type = type;
+            this.hash = hash;
         }
 
         @Override
@@ -234,7 +913,11 @@ public final class VeilShaderLoader {
             int id = this.getId();
             if (id != -1) {
                 RenderSystem.assertOnRenderThread();
-                GlStateManager.glDeleteShader(id);
+                if (this.hash != null) {
+                    VeilShaderLoader.releaseStage(this.type, this.hash);
+                } else {
+                    GlStateManager.glDeleteShader(id);
+                }
                 ((ProgramAccessor) this).setId(-1);
                 VeilShaderLoader.removeProgram(this.type, this.getName());
             }
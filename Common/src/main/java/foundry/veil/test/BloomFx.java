@@ -3,8 +3,7 @@ package foundry.veil.test;
 import com.mojang.math.Vector3f;
 import foundry.veil.color.Color;
 import foundry.veil.postprocessing.DynamicEffectInstance;
-
-import java.util.function.BiConsumer;
+import foundry.veil.postprocessing.InstanceDataWriter;
 
 public class BloomFx extends DynamicEffectInstance {
     public BloomFx(){
@@ -15,6 +14,6 @@ public class BloomFx extends DynamicEffectInstance {
     }
 
     @Override
-    public void writeDataToBuffer(BiConsumer<Integer, Float> writer) {
+    public void writeData(InstanceDataWriter writer) {
     }
 }
@@ -3,9 +3,13 @@ package foundry.veil.test;
 import com.mojang.blaze3d.vertex.PoseStack;
 import foundry.veil.Veil;
 import foundry.veil.postprocessing.InstantiatedPostProcessor;
+import foundry.veil.postprocessing.PostProcessingHandler;
 import net.minecraft.client.renderer.EffectInstance;
 import net.minecraft.resources.ResourceLocation;
 
+import java.util.Collection;
+import java.util.List;
+
 public class BloomPostProcessor extends InstantiatedPostProcessor<BloomFx> {
     private EffectInstance effectBloom;
 
@@ -14,6 +18,16 @@ public class BloomPostProcessor extends InstantiatedPostProcessor<BloomFx> {
         return Veil.veilPath("bloom");
     }
 
+    @Override
+    public Collection<String> getReads() {
+        return List.of("veil_custom", PostProcessingHandler.MAIN_TARGET);
+    }
+
+    @Override
+    public Collection<String> getTransientTargets() {
+        return List.of("swap");
+    }
+
     @Override
     protected int getMaxInstances() {
         return 16;
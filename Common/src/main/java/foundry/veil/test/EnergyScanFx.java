@@ -3,10 +3,39 @@ package foundry.veil.test;
 import com.mojang.math.Vector3f;
 import foundry.veil.color.Color;
 import foundry.veil.postprocessing.DynamicEffectInstance;
-
-import java.util.function.BiConsumer;
+import foundry.veil.postprocessing.InstanceDataWriter;
+import foundry.veil.postprocessing.InstanceLayout;
 
 public class EnergyScanFx extends DynamicEffectInstance {
+    public static final InstanceLayout LAYOUT = InstanceLayout.builder("EnergyScan", "Data")
+            .addVec3("center")
+            .addFloat("virtualRadius")
+            .addColor("magicBaseColor")
+            .addHalf("magicIntensity")
+            .addHalf("magicWidth")
+            .addHalf("magicFadeMaxDist")
+            .addHalf("magicFadeMinDist")
+            .addColor("energyBaseColor")
+            .addHalf("energyColorIntensity")
+            .addHalf("energyMixIntensity")
+            .addHalf("energyWidth")
+            .addHalf("energyFadeMaxDist")
+            .addHalf("energyFadeMinDist")
+            .build();
+    private static final InstanceLayout.Field CENTER = LAYOUT.getField("center");
+    private static final InstanceLayout.Field VIRTUAL_RADIUS = LAYOUT.getField("virtualRadius");
+    private static final InstanceLayout.Field MAGIC_BASE_COLOR = LAYOUT.getField("magicBaseColor");
+    private static final InstanceLayout.Field MAGIC_INTENSITY = LAYOUT.getField("magicIntensity");
+    private static final InstanceLayout.Field MAGIC_WIDTH = LAYOUT.getField("magicWidth");
+    private static final InstanceLayout.Field MAGIC_FADE_MAX_DIST = LAYOUT.getField("magicFadeMaxDist");
+    private static final InstanceLayout.Field MAGIC_FADE_MIN_DIST = LAYOUT.getField("magicFadeMinDist");
+    private static final InstanceLayout.Field ENERGY_BASE_COLOR = LAYOUT.getField("energyBaseColor");
+    private static final InstanceLayout.Field ENERGY_COLOR_INTENSITY = LAYOUT.getField("energyColorIntensity");
+    private static final InstanceLayout.Field ENERGY_MIX_INTENSITY = LAYOUT.getField("energyMixIntensity");
+    private static final InstanceLayout.Field ENERGY_WIDTH = LAYOUT.getField("energyWidth");
+    private static final InstanceLayout.Field ENERGY_FADE_MAX_DIST = LAYOUT.getField("energyFadeMaxDist");
+    private static final InstanceLayout.Field ENERGY_FADE_MIN_DIST = LAYOUT.getField("energyFadeMinDist");
+
     public Vector3f center;
     public float virtualRadius; // only for the calculation, actual max radius depends on the fadeMaxDist
 
@@ -58,27 +87,32 @@ public class EnergyScanFx extends DynamicEffectInstance {
     }
 
     @Override
-    public void writeDataToBuffer(BiConsumer<Integer, Float> writer) {
-        writer.accept(0, center.x());
-        writer.accept(1, center.y());
-        writer.accept(2, center.z());
-        writer.accept(3, virtualRadius);
+    public Vector3f getBoundingCenter() {
+        return center;
+    }
+
+    @Override
+    public float getBoundingRadius(float time) {
+        // The shader skips pixels further than virtualRadius + .5 after snapping them to 1/16 of a block
+        return virtualRadius + 1F;
+    }
+
+    @Override
+    public void writeData(InstanceDataWriter writer) {
+        writer.putVec3(CENTER, center);
+        writer.put(VIRTUAL_RADIUS, virtualRadius);
 
-        writer.accept(4, magicBaseColor.getRed());
-        writer.accept(5, magicBaseColor.getGreen());
-        writer.accept(6, magicBaseColor.getBlue());
-        writer.accept(7, magicIntensity);
-        writer.accept(8, magicWidth);
-        writer.accept(9, magicFadeMaxDist);
-        writer.accept(10, magicFadeMinDist);
+        writer.putColor(MAGIC_BASE_COLOR, magicBaseColor);
+        writer.put(MAGIC_INTENSITY, magicIntensity);
+        writer.put(MAGIC_WIDTH, magicWidth);
+        writer.put(MAGIC_FADE_MAX_DIST, magicFadeMaxDist);
+        writer.put(MAGIC_FADE_MIN_DIST, magicFadeMinDist);
 
-        writer.accept(11, energyBaseColor.getRed());
-        writer.accept(12, energyBaseColor.getGreen());
-        writer.accept(13, energyBaseColor.getBlue());
-        writer.accept(14, energyColorIntensity);
-        writer.accept(15, energyMixIntensity);
-        writer.accept(16, energyWidth);
-        writer.accept(17, energyFadeMaxDist);
-        writer.accept(18, energyFadeMinDist);
+        writer.putColor(ENERGY_BASE_COLOR, energyBaseColor);
+        writer.put(ENERGY_COLOR_INTENSITY, energyColorIntensity);
+        writer.put(ENERGY_MIX_INTENSITY, energyMixIntensity);
+        writer.put(ENERGY_WIDTH, energyWidth);
+        writer.put(ENERGY_FADE_MAX_DIST, energyFadeMaxDist);
+        writer.put(ENERGY_FADE_MIN_DIST, energyFadeMinDist);
     }
 }
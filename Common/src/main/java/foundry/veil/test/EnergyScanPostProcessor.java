@@ -2,10 +2,15 @@ package foundry.veil.test;
 
 import com.mojang.blaze3d.vertex.PoseStack;
 import foundry.veil.Veil;
+import foundry.veil.postprocessing.InstanceLayout;
 import foundry.veil.postprocessing.InstantiatedPostProcessor;
+import foundry.veil.postprocessing.PostProcessingHandler;
 import net.minecraft.client.renderer.EffectInstance;
 import net.minecraft.resources.ResourceLocation;
 
+import java.util.Collection;
+import java.util.List;
+
 public class EnergyScanPostProcessor extends InstantiatedPostProcessor<EnergyScanFx> {
     private EffectInstance effectEnergyScan;
 
@@ -14,14 +19,44 @@ public class EnergyScanPostProcessor extends InstantiatedPostProcessor<EnergySca
         return Veil.veilPath("energy_scan");
     }
 
+    @Override
+    public Collection<String> getReads() {
+        return List.of(PostProcessingHandler.MAIN_TARGET, PostProcessingHandler.DEPTH_TARGET);
+    }
+
+    @Override
+    public Collection<String> getTransientTargets() {
+        return List.of("swap");
+    }
+
+    @Override
+    public Collection<String> getScaledTargets() {
+        return List.of("scaled");
+    }
+
+    @Override
+    protected float getMinRenderScale() {
+        return 0.5F;
+    }
+
     @Override
     protected int getMaxInstances() {
         return 16;
     }
 
     @Override
-    protected int getDataSizePerInstance() {
-        return 19;
+    protected InstanceLayout getLayout() {
+        return EnergyScanFx.LAYOUT;
+    }
+
+    @Override
+    protected boolean useScreenBounds() {
+        return true;
+    }
+
+    @Override
+    protected boolean useTiles() {
+        return true;
     }
 
     @Override
@@ -36,7 +71,7 @@ public class EnergyScanPostProcessor extends InstantiatedPostProcessor<EnergySca
     public void beforeProcess(PoseStack viewModelStack) {
         super.beforeProcess(viewModelStack);
 
-        setDataBufferUniform(effectEnergyScan, "Data", "instanceCount");
+        setDataBufferUniform(effectEnergyScan, EnergyScanFx.LAYOUT.getBufferName(), "instanceCount");
     }
 
     @Override
@@ -2,36 +2,103 @@ package foundry.veil.test;
 
 import com.mojang.math.Vector3f;
 import foundry.veil.color.Color;
+import foundry.veil.math.Easings;
 import foundry.veil.postprocessing.DynamicEffectInstance;
+import foundry.veil.postprocessing.InstanceAnimation;
+import foundry.veil.postprocessing.InstanceDataWriter;
+import foundry.veil.postprocessing.InstanceLayout;
 
-import java.util.function.BiConsumer;
-
+/**
+ * Only uploaded when it changes, so call {@link #markDirty()} after changing the fields directly.
+ * The radius and intensity are animated by the shader
+ */
 public class EnergySphereFx extends DynamicEffectInstance {
+    public static final InstanceLayout LAYOUT = InstanceLayout.builder("EnergySphere", "Data")
+            .addVec3("center")
+            .addColor("color")
+            .addAnimated("radius")
+            .addAnimated("intensity")
+            .build();
+    private static final InstanceLayout.Field CENTER = LAYOUT.getField("center");
+    private static final InstanceLayout.Field COLOR = LAYOUT.getField("color");
+    private static final InstanceLayout.Field RADIUS = LAYOUT.getField("radius");
+    private static final InstanceLayout.Field INTENSITY = LAYOUT.getField("intensity");
+
     public Vector3f center;
     public Color color;
-    public float radius;
-    public float intensity;
+    public InstanceAnimation radius;
+    public InstanceAnimation intensity;
 
     public EnergySphereFx(Vector3f pos, Color color, float radius, float intensity) {
         this.center = pos;
         this.color = color;
-        this.radius = radius;
-        this.intensity = intensity;
+        this.radius = InstanceAnimation.constant(radius);
+        this.intensity = InstanceAnimation.constant(intensity);
     }
 
     public EnergySphereFx(Vector3f pos, float radius, float intensity) {
         this(pos, new Color(.2F, .1F, .4F, 1F), radius, intensity);
     }
 
+    public EnergySphereFx setRadius(float radius) {
+        return animateRadius(InstanceAnimation.constant(radius));
+    }
+
+    public EnergySphereFx setIntensity(float intensity) {
+        return animateIntensity(InstanceAnimation.constant(intensity));
+    }
+
+    public EnergySphereFx animateRadius(float from, float to, float duration, Easings.Easing easing) {
+        return animateRadius(InstanceAnimation.of(from, to, duration, easing));
+    }
+
+    public EnergySphereFx animateIntensity(float from, float to, float duration, Easings.Easing easing) {
+        return animateIntensity(InstanceAnimation.of(from, to, duration, easing));
+    }
+
+    public EnergySphereFx animateRadius(InstanceAnimation radius) {
+        this.radius = radius;
+        markDirty();
+        return this;
+    }
+
+    public EnergySphereFx animateIntensity(InstanceAnimation intensity) {
+        this.intensity = intensity;
+        markDirty();
+        return this;
+    }
+
+    @Override
+    public EnergySphereFx setLifetime(float lifetime) {
+        super.setLifetime(lifetime);
+        return this;
+    }
+
+    @Override
+    public Vector3f getBoundingCenter() {
+        return center;
+    }
+
+    @Override
+    public float getBoundingRadius(float time) {
+        return radius.evaluate(time - getSpawnTime());
+    }
+
+    @Override
+    protected boolean needsUpdate() {
+        return false;
+    }
+
+    @Override
+    protected boolean tracksChanges() {
+        return true;
+    }
+
     @Override
-    public void writeDataToBuffer(BiConsumer<Integer, Float> writer) {
-        writer.accept(0, center.x());
-        writer.accept(1, center.y());
-        writer.accept(2, center.z());
-        writer.accept(3, color.getRed());
-        writer.accept(4, color.getGreen());
-        writer.accept(5, color.getBlue());
-        writer.accept(6, radius);
-        writer.accept(7, intensity);
+    public void writeData(InstanceDataWriter writer) {
+        writer.putVec3(CENTER, center)
+                .putColor(COLOR, color)
+                .putAnimation(RADIUS, radius, getSpawnTime())
+                .putAnimation(INTENSITY, intensity, getSpawnTime());
     }
 }
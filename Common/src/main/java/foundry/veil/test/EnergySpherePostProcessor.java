@@ -2,10 +2,15 @@ package foundry.veil.test;
 
 import com.mojang.blaze3d.vertex.PoseStack;
 import foundry.veil.Veil;
+import foundry.veil.postprocessing.InstanceLayout;
 import foundry.veil.postprocessing.InstantiatedPostProcessor;
+import foundry.veil.postprocessing.PostProcessingHandler;
 import net.minecraft.client.renderer.EffectInstance;
 import net.minecraft.resources.ResourceLocation;
 
+import java.util.Collection;
+import java.util.List;
+
 public class EnergySpherePostProcessor extends InstantiatedPostProcessor<EnergySphereFx> {
     private EffectInstance effectEnergySphere;
 
@@ -14,14 +19,29 @@ public class EnergySpherePostProcessor extends InstantiatedPostProcessor<EnergyS
         return Veil.veilPath("energy_sphere");
     }
 
+    @Override
+    public Collection<String> getReads() {
+        return List.of(PostProcessingHandler.MAIN_TARGET, PostProcessingHandler.DEPTH_TARGET);
+    }
+
+    @Override
+    public Collection<String> getTransientTargets() {
+        return List.of("swap");
+    }
+
     @Override
     protected int getMaxInstances() {
         return 16;
     }
 
     @Override
-    protected int getDataSizePerInstance() {
-        return 8;
+    protected InstanceLayout getLayout() {
+        return EnergySphereFx.LAYOUT;
+    }
+
+    @Override
+    protected boolean useScreenBounds() {
+        return true;
     }
 
     @Override
@@ -35,7 +55,7 @@ public class EnergySpherePostProcessor extends InstantiatedPostProcessor<EnergyS
     @Override
     public void beforeProcess(PoseStack viewModelStack) {
         super.beforeProcess(viewModelStack);
-        setDataBufferUniform(effectEnergySphere, "Data", "instanceCount");
+        setDataBufferUniform(effectEnergySphere, EnergySphereFx.LAYOUT.getBufferName(), "instanceCount");
     }
 
     @Override
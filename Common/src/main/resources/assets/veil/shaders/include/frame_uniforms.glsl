@@ -0,0 +1,21 @@
+// Updated once per frame by foundry.veil.shader.VeilFrameUniforms, the layout must match it
+#ifndef VEIL_FRAME_UNIFORMS
+#define VEIL_FRAME_UNIFORMS
+
+layout(std140) uniform VeilFrameUniforms {
+    mat4 VeilViewMat;
+    mat4 VeilProjMat;
+    mat4 InvViewMat;
+    mat4 InvProjMat;
+    vec3 CameraPos;
+    float NearPlaneDistance;
+    vec3 LookVector;
+    float FarPlaneDistance;
+    vec3 UpVector;
+    float Fov;
+    vec3 LeftVector;
+    float AspectRatio;
+    float VeilTime;
+};
+
+#endif
@@ -5,7 +5,6 @@ import foundry.veil.math.Easings;
 import foundry.veil.test.EnergySphereFx;
 import foundry.veil.test.PostProcessingEffectsRegistry;
 import net.fabricmc.fabric.api.event.player.UseItemCallback;
-import net.minecraft.util.Mth;
 import net.minecraft.world.InteractionResult;
 import net.minecraft.world.InteractionResultHolder;
 import net.minecraft.world.item.Items;
@@ -22,24 +21,11 @@ public class VeilQuilt implements ModInitializer {
             UseItemCallback.EVENT.register((player, world, hand) -> {
                 if(player.level.isClientSide){
                     if(player.getItemInHand(hand).is(Items.ALLIUM)){
-                        PostProcessingEffectsRegistry.ENERGY_SPHERE.addFxInstance(new EnergySphereFx(new Vector3f(Vec3.atCenterOf(player.getOnPos())), 0, 1){
-                            @Override
-                            public void update(double deltaTime) {
-                                super.update(deltaTime);
-
-                                float t = getTime() / 7.5F;
-
-                                if (t > 1) {
-                                    remove();
-                                    return;
-                                }
-                                t = Mth.lerp(Easings.ease(t, Easings.Easing.easeOutCirc), 0, 1);
-
-                                this.radius = t * 300F;
-                                this.intensity = (300F - radius) / 300F;
-                                this.intensity = (float) Mth.clamp(intensity, 0., 1.);
-                            }
-                        });
+                        // Animated by the shader, so nothing has to be done until it expires
+                        PostProcessingEffectsRegistry.ENERGY_SPHERE.addFxInstance(new EnergySphereFx(new Vector3f(Vec3.atCenterOf(player.getOnPos())), 0, 1)
+                                .animateRadius(0F, 300F, 7.5F, Easings.Easing.easeOutCirc)
+                                .animateIntensity(1F, 0F, 7.5F, Easings.Easing.easeOutCirc)
+                                .setLifetime(7.5F));
                     }
                 }
                 return InteractionResultHolder.consume(player.getItemInHand(hand));